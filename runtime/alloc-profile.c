@@ -0,0 +1,136 @@
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include "control.h"
+#include "gc.h"
+#include "alloc-profile.h"
+
+// A line of the report.
+struct Row {
+  const char *name;
+  int index;          // of the site in its method, or -1 for a class
+  const char *type;
+  long samples;
+  long objects;
+  long bytes;
+};
+
+// The sites sampled so far, linked through their "next".
+static struct Tiger_alloc_site *sites = NULL;
+static long siteCnt = 0;
+
+// The allocations by the runtime, or by code without sites.
+static struct Tiger_alloc_site unknownSite = {.method = "<unknown>", .index = 0};
+
+// The classes sampled so far, found by name, as there are few.
+static struct Row *classes = NULL;
+static long classCnt = 0;
+static long classCap = 0;
+
+static long sampleCnt = 0;
+
+static void AllocProfile_exit ();
+
+void AllocProfile_init ()
+{
+  atexit (AllocProfile_exit);
+  return;
+}
+
+static void AllocProfile_add (struct Row *row, long size, long weight)
+{
+  row->samples++;
+  row->bytes += weight;
+  // the bytes stand for objects of this size, rounded
+  row->objects += (weight + size / 2) / size;
+  return;
+}
+
+void AllocProfile_sample (struct Tiger_alloc_site *site, const char *type,
+                          long size, long weight)
+{
+  struct Row *c = NULL;
+  long i;
+
+  if (NULL == site)
+    site = &unknownSite;
+  if (0 == site->samples) {
+    site->next = sites;
+    sites = site;
+    siteCnt++;
+  }
+  site->type = type;
+  site->samples++;
+  site->bytes += weight;
+  site->objects += (weight + size / 2) / size;
+
+  for (i = 0; i < classCnt && NULL == c; i++)
+    if (strcmp (classes[i].name, type) == 0)
+      c = &classes[i];
+  if (NULL == c) {
+    if (classCnt == classCap) {
+      classCap = classCap ? 2 * classCap : 16;
+      classes = (struct Row *)realloc (classes, classCap * sizeof (struct Row));
+      if (NULL == classes) {
+        printf ("OutOfMemoryError: cannot record the allocation profile.\n");
+        exit (1);
+      }
+    }
+    c = &classes[classCnt++];
+    memset (c, 0, sizeof (struct Row));
+    c->name = type;
+    c->index = -1;
+  }
+  AllocProfile_add (c, size, weight);
+  sampleCnt++;
+  return;
+}
+
+// The rows by decreasing bytes.
+static int AllocProfile_cmp (const void *a, const void *b)
+{
+  long x = ((const struct Row *)a)->bytes, y = ((const struct Row *)b)->bytes;
+  return x > y ? -1 : x < y;
+}
+
+static void AllocProfile_print (const char *title, struct Row *rows, long n)
+{
+  long i;
+
+  qsort (rows, n, sizeof (struct Row), AllocProfile_cmp);
+  fprintf (stderr, "  %16s %12s %8s  %s\n", "bytes", "objects", "samples", title);
+  for (i = 0; i < n; i++) {
+    fprintf (stderr, "  %16ld %12ld %8ld  %s", rows[i].bytes, rows[i].objects,
+             rows[i].samples, rows[i].name);
+    if (rows[i].index >= 0)
+      fprintf (stderr, "#%d (%s)", rows[i].index, rows[i].type);
+    fprintf (stderr, "\n");
+  }
+  return;
+}
+
+static void AllocProfile_exit ()
+{
+  struct Row *rows = (struct Row *)calloc (siteCnt + 1, sizeof (struct Row));
+  struct Tiger_alloc_site *s;
+  long n = 0;
+
+  if (NULL == rows)
+    return;
+  for (s = sites; NULL != s; s = s->next, n++) {
+    rows[n].name = s->method;
+    rows[n].index = s->index;
+    rows[n].type = s->type;
+    rows[n].samples = s->samples;
+    rows[n].objects = s->objects;
+    rows[n].bytes = s->bytes;
+  }
+
+  fprintf (stderr, "Allocation profile (a sample every %ld bytes, %ld samples):\n",
+           Control_allocSample, sampleCnt);
+  AllocProfile_print ("class", classes, classCnt);
+  fprintf (stderr, "\n");
+  AllocProfile_print ("site", rows, n);
+  free (rows);
+  return;
+}
@@ -0,0 +1,21 @@
+#ifndef ALLOC_PROFILE_H
+#define ALLOC_PROFILE_H
+
+// The allocation profiler of the programs compiled with
+// "-allocProfile true", whose allocation sites are described by a
+// "struct Tiger_alloc_site" (see "gc.h"). About every
+// "@allocSample" bytes, an allocation is sampled, and stands for all
+// the bytes allocated since the last sample. A report of the
+// objects and bytes per class and per site is printed at exit.
+
+struct Tiger_alloc_site;
+
+// Start the profiler.
+void AllocProfile_init ();
+
+// An object of "size" bytes of the class "type" is allocated at
+// "site" (NULL if unknown), standing for "weight" bytes.
+void AllocProfile_sample (struct Tiger_alloc_site *site, const char *type,
+                          long size, long weight);
+
+#endif
@@ -0,0 +1,106 @@
+// A benchmark of the layout the copying collectors leave behind:
+//   make bench
+// builds a binary search tree by random insertion, interleaved with
+// garbage, so that the nodes are scattered over the heap, collects,
+// and then times in-order walks and root-to-leaf lookups of the
+// survivors. It is written the
+// way the compiler generates code (see "cfg.PrettyPrintVisitor").
+
+#include <stdio.h>
+#include <time.h>
+#include "../tiger.h"
+
+struct Node_vtable
+{
+  struct Tiger_class tiger_class;
+};
+
+struct Node
+{
+  struct Node_vtable *vptr;
+  struct Node *left;
+  struct Node *right;
+  long key;
+};
+
+static const unsigned long Node_gc_map_bits[] = {0x6UL};
+struct Node_vtable Node_vtable_ =
+{
+  {sizeof(struct Node), {3, Node_gc_map_bits}},
+};
+
+#define NODES (1L << 20)
+#define WALKS 20
+#define LOOKUPS NODES
+
+static long walk (struct Node *n)
+{
+  long sum = 0;
+  while (n) {
+    sum += walk (n->left) + n->key;
+    n = n->right;
+  }
+  return sum;
+}
+
+static long lookup (struct Node *n, long key)
+{
+  while (n && n->key != key)
+    n = key < n->key ? n->left : n->right;
+  return n ? 1 : 0;
+}
+
+int Tiger_main ()
+{
+  struct Node *root = 0, *x = 0;
+  static const unsigned long gc_site_0_bits[] = {0x3UL};
+  static const struct Tiger_frame_desc gc_site_0 = {{2, gc_site_0_bits}};
+  struct {
+    struct Tiger_frame *prev;
+    const struct Tiger_frame_desc *desc;
+    void **slots[2];
+  } gc_frame = {prev, &gc_site_0, {(void**)&root, (void**)&x}};
+  prev = (struct Tiger_frame*)&gc_frame;
+
+  long i, sum = 0;
+  for (i = 0; i < NODES; i++) {
+    unsigned long key = (i * 2654435761UL) % 1000003;
+    struct Node *p;
+    x = Tiger_new (&Node_vtable_);
+    x->key = key;
+    Tiger_new (&Node_vtable_); // garbage
+    if (!root) {
+      root = x;
+      continue;
+    }
+    for (p = root; ; ) {
+      struct Node **child = key < p->key ? &p->left : &p->right;
+      if (!*child) {
+        *child = x;
+        TIGER_WRITE_BARRIER(p);
+        break;
+      }
+      p = *child;
+    }
+  }
+  // leave the survivors as the collector laid them out
+  for (i = 0; i < 4 * NODES; i++)
+    Tiger_new (&Node_vtable_);
+  x = 0;
+
+  clock_t start = clock ();
+  for (i = 0; i < WALKS; i++) {
+    sum += walk (root);
+    root->key++; // so that the walks are not merged
+  }
+  double walks = (double)(clock () - start) / CLOCKS_PER_SEC;
+  long found = 0;
+  start = clock ();
+  for (i = 0; i < LOOKUPS; i++)
+    found += lookup (root, (i * 40503UL) % 1000003);
+  double lookups = (double)(clock () - start) / CLOCKS_PER_SEC;
+  printf ("walks %.3fs, lookups %.3fs (sum %ld, found %ld, %d collections)\n",
+          walks, lookups, sum, found, gc_cnt);
+  prev = gc_frame.prev;
+  return 0;
+}
@@ -1,6 +1,7 @@
 #include <stdio.h>
 #include <stdlib.h>
 #include <string.h>
+#include <limits.h>
 #include "control.h"
 #include "command-line.h"
 
@@ -10,7 +11,8 @@ static void errorWrongArg (char *, char *, char *);
 typedef enum{
   ARGTYPE_BOOL,
   ARGTYPE_EMPTY, // expects no argument
-  ARGTYPE_INT,
+  ARGTYPE_INT,   // the action is also given the argument as typed
+  ARGTYPE_SIZE,  // in kilobytes, unless with a "k", "m" or "g" suffix
   ARGTYPE_STRING,
 } ArgType_t;
 
@@ -18,12 +20,144 @@ typedef enum{
 /*        all functions */
 
 
-static void Arg_setHeapSize(int heapSize)
+static void Arg_setHeapSize(long heapSize)
 {
   Control_heapSize = heapSize;
   return;
 }
 
+static void Arg_setMaxHeapSize(long maxHeapSize)
+{
+  Control_maxHeapSize = maxHeapSize;
+  return;
+}
+
+static void Arg_setGcOverhead(int percent, char *arg)
+{
+  if (percent <= 0 || percent >= 100)
+    errorWrongArg ("gcOverhead", "a percentage <n> in (0, 100)", arg);
+  Control_gcOverhead = percent;
+  return;
+}
+
+static void Arg_setLosThreshold(long losThreshold)
+{
+  Control_losThreshold = losThreshold;
+  return;
+}
+
+static void Arg_setGcThreads(int threads, char *arg)
+{
+  if (threads <= 0)
+    errorWrongArg ("gcThreads", "a positive <n>", arg);
+  Control_gcThreads = threads;
+  return;
+}
+
+static void Arg_setGcLog(char *file)
+{
+  Control_gcLog = file;
+  return;
+}
+
+static void Arg_setGcStats(int b)
+{
+  Control_gcStats = b;
+  return;
+}
+
+static void Arg_setHeapDump(char *file)
+{
+  Control_heapDump = file;
+  return;
+}
+
+static void Arg_setHeapImage(char *file)
+{
+  Control_heapImage = file;
+  return;
+}
+
+static void Arg_setAllocSample(long bytes)
+{
+  Control_allocSample = bytes;
+  return;
+}
+
+static void Arg_setTraceFile(char *file)
+{
+  Control_traceFile = file;
+  return;
+}
+
+static void Arg_setTraceEvents(int n, char *arg)
+{
+  if (n <= 0)
+    errorWrongArg ("traceEvents", "a positive <n>", arg);
+  Control_traceEvents = n;
+  return;
+}
+
+static void Arg_setProfile(char *file)
+{
+  Control_profile = file;
+  return;
+}
+
+static void Arg_setProfileHz(int n, char *arg)
+{
+  if (n <= 0)
+    errorWrongArg ("profileHz", "a positive <n>", arg);
+  Control_profileHz = n;
+  return;
+}
+
+static void Arg_setFlushLines(int b)
+{
+  Control_flushLines = b;
+  return;
+}
+
+static void Arg_setHugePages(int b)
+{
+  Control_hugePages = b;
+  return;
+}
+
+static void Arg_setGc(char *kind)
+{
+  if (strcmp(kind, "copying")==0)
+    Control_gcKind = GC_KIND_COPYING;
+  else if (strcmp(kind, "generational")==0)
+    Control_gcKind = GC_KIND_GENERATIONAL;
+  else if (strcmp(kind, "markcompact")==0)
+    Control_gcKind = GC_KIND_MARKCOMPACT;
+  else if (strcmp(kind, "incremental")==0)
+    Control_gcKind = GC_KIND_INCREMENTAL;
+  else if (strcmp(kind, "mostlycopying")==0)
+    Control_gcKind = GC_KIND_MOSTLYCOPYING;
+  else errorWrongArg ("gc", "{copying|generational|markcompact|incremental|mostlycopying}", kind);
+  return;
+}
+
+static void Arg_setGcPause(int micros, char *arg)
+{
+  if (micros <= 0)
+    errorWrongArg ("gcPause", "a positive <n>", arg);
+  Control_gcPause = micros;
+  return;
+}
+
+static void Arg_setGcOrder(char *order)
+{
+  if (strcmp(order, "bfs")==0)
+    Control_gcOrder = GC_ORDER_BREADTH_FIRST;
+  else if (strcmp(order, "dfs")==0)
+    Control_gcOrder = GC_ORDER_DEPTH_FIRST;
+  else errorWrongArg ("gcOrder", "{bfs|dfs}", order);
+  return;
+}
+
 /* Typically, a commandline argument take the form of:
  *   -name arg        desc
 
@@ -43,11 +177,101 @@ struct Arg_t
 
 /* all available arguments */
 static struct Arg_t allArgs[] = {
+  {"gc",
+   "{copying|generational|markcompact|incremental|mostlycopying}",
+   "which garbage collector to use",
+   ARGTYPE_STRING,
+   Arg_setGc},
   {"heapSize", 
-   "<n>", 
-   "set the Java heap size (in kilobytes)",
-   ARGTYPE_INT,
+   "<n>[k|m|g]", 
+   "set the initial Java heap size (in kilobytes by default)",
+   ARGTYPE_SIZE,
    Arg_setHeapSize},
+  {"maxHeapSize",
+   "<n>[k|m|g]",
+   "set the maximum Java heap size (in kilobytes by default)",
+   ARGTYPE_SIZE,
+   Arg_setMaxHeapSize},
+  {"gcOverhead",
+   "<n>",
+   "target percentage of time spent in GC",
+   ARGTYPE_INT,
+   Arg_setGcOverhead},
+  {"hugePages",
+   "{true|false}",
+   "back the Java heap by transparent huge pages",
+   ARGTYPE_BOOL,
+   Arg_setHugePages},
+  {"losThreshold",
+   "<n>[k|m|g]",
+   "allocate arrays of at least this size out of the heap",
+   ARGTYPE_SIZE,
+   Arg_setLosThreshold},
+  {"gcOrder",
+   "{bfs|dfs}",
+   "lay out the survivors of a copy in breadth- or depth-first order",
+   ARGTYPE_STRING,
+   Arg_setGcOrder},
+  {"gcPause",
+   "<n>",
+   "pause budget of the incremental collector (in microseconds)",
+   ARGTYPE_INT,
+   Arg_setGcPause},
+  {"gcThreads",
+   "<n>",
+   "number of threads of the copying collector",
+   ARGTYPE_INT,
+   Arg_setGcThreads},
+  {"gcLog",
+   "<file>",
+   "log every collection to <file> as JSON lines (\"-\" for stderr)",
+   ARGTYPE_STRING,
+   Arg_setGcLog},
+  {"gcStats",
+   "{true|false}",
+   "print a summary of the collections at exit",
+   ARGTYPE_BOOL,
+   Arg_setGcStats},
+  {"heapDump",
+   "<file>",
+   "on SIGUSR1, dump the heap to <file>.<n> besides the histogram",
+   ARGTYPE_STRING,
+   Arg_setHeapDump},
+  {"heapImage",
+   "<file>",
+   "save the result of the \"-heapImage\" method to <file>, or restore it",
+   ARGTYPE_STRING,
+   Arg_setHeapImage},
+  {"allocSample",
+   "<n>[k|m|g]",
+   "sample an allocation every <n> bytes (0 for all) when profiling",
+   ARGTYPE_SIZE,
+   Arg_setAllocSample},
+  {"traceFile",
+   "<file>",
+   "write the events of the traced methods to <file> (default: trace.json)",
+   ARGTYPE_STRING,
+   Arg_setTraceFile},
+  {"traceEvents",
+   "<n>",
+   "keep the last <n> events of the traced methods",
+   ARGTYPE_INT,
+   Arg_setTraceEvents},
+  {"profile",
+   "<file>",
+   "sample the stacks, and write them collapsed to <file>",
+   ARGTYPE_STRING,
+   Arg_setProfile},
+  {"profileHz",
+   "<n>",
+   "take <n> samples a second of CPU time (default: 100)",
+   ARGTYPE_INT,
+   Arg_setProfileHz},
+  {"flushLines",
+   "{true|false}",
+   "flush the output at the end of every line (default: if a terminal)",
+   ARGTYPE_BOOL,
+   Arg_setFlushLines},
   {0,
    0,
    0,
@@ -87,6 +311,25 @@ static void Arg_print ()
   return;
 }
 
+// Parse a positive size in bytes, given in kilobytes unless it
+// ends with "k", "m" or "g". Return -1 if it is not one.
+static long parseSize (char *s)
+{
+  char *end;
+  long unit = 1024;
+  long n = strtol (s, &end, 10);
+
+  switch (*end){
+  case 'k': case 'K': unit = 1024L; end++; break;
+  case 'm': case 'M': unit = 1024L * 1024; end++; break;
+  case 'g': case 'G': unit = 1024L * 1024 * 1024; end++; break;
+  default: break;
+  }
+  if (end == s || '\0' != *end || n < 0 || n > LONG_MAX / unit)
+    return -1;
+  return n * unit;
+}
+
 static void errorNoName (char *s)
 {
   printf ("unknown switch: %s\n", s);
@@ -123,7 +366,7 @@ void CommandLine_doarg (int argc, char **argv)
     if (strcmp(argv[index++], "@tiger")==0)
       break;
   }
-  for (index=0; index<argc; ){
+  for (; index<argc; ){
     char *inputName = argv[index++];
     // If a string starts with '@', then
     // treat it as a terminator.
@@ -159,7 +402,24 @@ void CommandLine_doarg (int argc, char **argv)
         break;
       }
       case ARGTYPE_INT:{
-        int result;
+        long result;
+        char *arg, *end;
+        
+        if (index>=argc)
+          errorNoArg (allArgs[i].name,
+                      allArgs[i].arg);
+        
+        arg = argv[index++];
+        result = strtol (arg, &end, 10);
+        if (end == arg || '\0' != *end || result < INT_MIN || result > INT_MAX)
+          errorWrongArg (allArgs[i].name,
+                         allArgs[i].arg,
+                         arg);
+        allArgs[i].action ((int)result, arg);
+        break;
+      }
+      case ARGTYPE_SIZE:{
+        long result;
         char *arg;
         
         if (index>=argc)
@@ -167,7 +427,11 @@ void CommandLine_doarg (int argc, char **argv)
                       allArgs[i].arg);
         
         arg = argv[index++];
-        result = atoi (arg);
+        result = parseSize (arg);
+        if (result < 0)
+          errorWrongArg (allArgs[i].name,
+                         allArgs[i].arg,
+                         arg);
         allArgs[i].action (result);
         break;
       }
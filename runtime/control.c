@@ -1,3 +1,37 @@
 #include "control.h"
 
-int Control_heapSize = 1024;
+long Control_heapSize = 1024;
+
+long Control_maxHeapSize = 256L * 1024 * 1024;
+
+int Control_gcOverhead = 25;
+
+long Control_losThreshold = 64 * 1024;
+
+int Control_hugePages = 0;
+
+GcKind_t Control_gcKind = GC_KIND_COPYING;
+
+GcOrder_t Control_gcOrder = GC_ORDER_BREADTH_FIRST;
+
+long Control_gcPause = 1000;
+
+int Control_gcThreads = 1;
+
+char *Control_gcLog = 0;
+
+int Control_gcStats = 0;
+
+char *Control_heapDump = 0;
+
+char *Control_heapImage = 0;
+
+long Control_allocSample = 64 * 1024;
+
+char *Control_traceFile = "trace.json";
+int Control_traceEvents = 1 << 20;
+
+char *Control_profile = 0;
+int Control_profileHz = 100;
+
+int Control_flushLines = -1;
@@ -1,7 +1,80 @@
 #ifndef CONTROL_H
 #define CONTROL_H
 
-// size of the Java heap (in bytes)
-extern int Control_heapSize;
+// initial size of the Java heap (in bytes)
+extern long Control_heapSize;
+
+// maximum size of the Java heap (in bytes)
+extern long Control_maxHeapSize;
+
+// target percentage of the time spent in collection, the heap
+// grows when it is exceeded
+extern int Control_gcOverhead;
+
+// arrays of at least this size (in bytes) go to the large object space
+extern long Control_losThreshold;
+
+// whether to ask for transparent huge pages for the Java heap
+extern int Control_hugePages;
+
+// which garbage collector to use
+typedef enum {
+  GC_KIND_COPYING,      // Cheney's semi-space copying collector
+  GC_KIND_GENERATIONAL, // a nursery promoting into a copying old generation
+  GC_KIND_MARKCOMPACT,  // a sliding mark-compact collector, without a "to" space
+  GC_KIND_INCREMENTAL,  // Baker's incremental copying collector
+  GC_KIND_MOSTLYCOPYING, // Bartlett's collector, with conservative roots
+} GcKind_t;
+
+extern GcKind_t Control_gcKind;
+
+// in which order the sequential copying collectors scan the copies,
+// and so lay out the survivors (the parallel one always scans the
+// newest copy of a worker first, close to the depth-first order)
+typedef enum {
+  GC_ORDER_BREADTH_FIRST, // Cheney's scan
+  GC_ORDER_DEPTH_FIRST,   // children next to their parents, with a stack
+} GcOrder_t;
+
+extern GcOrder_t Control_gcOrder;
+
+// the pause budget (in microseconds) of a step of the incremental
+// collector
+extern long Control_gcPause;
+
+// number of threads of the copying collector, which is parallel
+// if more than one
+extern int Control_gcThreads;
+
+// the file to log every collection to (as JSON lines), or NULL
+extern char *Control_gcLog;
+
+// whether to print a summary of the collections at exit
+extern int Control_gcStats;
+
+// the heap dump written on SIGUSR1 is "<file>.<n>", or none if NULL
+extern char *Control_heapDump;
+
+// the heap image of the method compiled with "-heapImage", or none
+// if NULL
+extern char *Control_heapImage;
+
+// the allocation profiler samples an allocation about every this
+// many bytes, or every allocation if 0
+extern long Control_allocSample;
+
+// the traced methods write their events to this file, and keep at
+// most this many of them
+extern char *Control_traceFile;
+extern int Control_traceEvents;
+
+// the profiler writes the stacks sampled this many times a second
+// of CPU time to this file, or is off if NULL
+extern char *Control_profile;
+extern int Control_profileHz;
+
+// whether to flush the output at the end of every line, or -1 to
+// do so only if it's a terminal
+extern int Control_flushLines;
 
 #endif
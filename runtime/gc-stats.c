@@ -0,0 +1,171 @@
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include "control.h"
+#include "gc-stats.h"
+
+static FILE *gcLog = NULL;
+
+static long startTime;      // when the program starts
+static long gcStartTime;    // when the current collection starts
+static long lastGcEnd;      // when the last collection ends
+static long lastUsed = 0;   // used bytes after the last collection
+
+static long totalAlloc = 0;
+static long totalCopied = 0;
+static long totalPause = 0;
+static long peakUsed = 0;
+static long peakCommitted = 0;
+static long allocSinceGc;
+
+// the pause of every collection, for the percentiles
+static long *pauses = NULL;
+static long pauseCnt = 0;
+static long pauseCap = 0;
+
+static long GcStats_now ()
+{
+  struct timespec ts;
+  clock_gettime (CLOCK_MONOTONIC, &ts);
+  return ts.tv_sec * 1000000000L + ts.tv_nsec;
+}
+
+int GcStats_enabled ()
+{
+  return Control_gcStats || NULL != Control_gcLog;
+}
+
+void GcStats_init ()
+{
+  startTime = lastGcEnd = GcStats_now ();
+  if (NULL == Control_gcLog)
+    return;
+  if (strcmp (Control_gcLog, "-") == 0)
+    gcLog = stderr;
+  else gcLog = fopen (Control_gcLog, "w");
+  if (NULL == gcLog) {
+    printf ("Error: cannot open the GC log: %s\n", Control_gcLog);
+    exit (1);
+  }
+  return;
+}
+
+void GcStats_gcStart (long used)
+{
+  gcStartTime = GcStats_now ();
+  allocSinceGc = used - lastUsed;
+  totalAlloc += allocSinceGc;
+  if (used > peakUsed)
+    peakUsed = used;
+  return;
+}
+
+void GcStats_gcEnd (const char *kind, long used, long copied,
+                    long scanned, long committed)
+{
+  long end = GcStats_now ();
+  long pause = end - gcStartTime;
+  long mutator = gcStartTime - lastGcEnd;
+
+  if (pauseCnt == pauseCap) {
+    pauseCap = pauseCap ? 2 * pauseCap : 256;
+    pauses = (long *)realloc (pauses, pauseCap * sizeof (long));
+    if (NULL == pauses) {
+      printf ("OutOfMemoryError: cannot record the GC pauses.\n");
+      exit (1);
+    }
+  }
+  pauses[pauseCnt++] = pause;
+  totalPause += pause;
+  totalCopied += copied;
+  if (committed > peakCommitted)
+    peakCommitted = committed;
+
+  if (NULL != gcLog) {
+    fprintf (gcLog, "{\"event\":\"gc\",\"id\":%ld,\"kind\":\"%s\","
+             "\"time_ns\":%ld,\"pause_ns\":%ld,"
+             "\"used_before\":%ld,\"used_after\":%ld,"
+             "\"copied_bytes\":%ld,\"survival\":%.4f,"
+             "\"alloc_bytes\":%ld,\"alloc_rate\":%.0f,"
+             "\"committed\":%ld}\n",
+             pauseCnt, kind, gcStartTime - startTime, pause,
+             lastUsed + allocSinceGc, used, copied,
+             scanned > 0 ? (double)copied / scanned : 0.0,
+             allocSinceGc,
+             mutator > 0 ? allocSinceGc * 1e9 / mutator : 0.0,
+             committed);
+  }
+  lastUsed = used;
+  lastGcEnd = end;
+  return;
+}
+
+static int GcStats_cmp (const void *a, const void *b)
+{
+  long x = *(const long *)a, y = *(const long *)b;
+  return x < y ? -1 : x > y;
+}
+
+// The pause at the percentile "p", of the sorted pauses.
+static long GcStats_percentile (int p)
+{
+  if (0 == pauseCnt)
+    return 0;
+  long i = (pauseCnt * p + 99) / 100 - 1;
+  return pauses[i < 0 ? 0 : i];
+}
+
+void GcStats_exit (long used, long committed)
+{
+  long elapsed = GcStats_now () - startTime;
+  long i;
+
+  totalAlloc += used - lastUsed;
+  if (used > peakUsed)
+    peakUsed = used;
+  if (committed > peakCommitted)
+    peakCommitted = committed;
+  qsort (pauses, pauseCnt, sizeof (long), GcStats_cmp);
+
+  if (NULL != gcLog) {
+    fprintf (gcLog, "{\"event\":\"summary\",\"time_ns\":%ld,\"gc_count\":%ld,"
+             "\"allocated_bytes\":%ld,\"copied_bytes\":%ld,"
+             "\"pause_total_ns\":%ld,\"pause_p50_ns\":%ld,"
+             "\"pause_p90_ns\":%ld,\"pause_p99_ns\":%ld,\"pause_max_ns\":%ld,"
+             "\"peak_used\":%ld,\"peak_committed\":%ld}\n",
+             elapsed, pauseCnt, totalAlloc, totalCopied, totalPause,
+             GcStats_percentile (50), GcStats_percentile (90),
+             GcStats_percentile (99), GcStats_percentile (100),
+             peakUsed, peakCommitted);
+    if (stderr != gcLog)
+      fclose (gcLog);
+    gcLog = NULL;
+  }
+
+  if (!Control_gcStats)
+    return;
+  fprintf (stderr, "GC summary:\n");
+  fprintf (stderr, "  collections:     %ld\n", pauseCnt);
+  fprintf (stderr, "  allocated:       %ld bytes\n", totalAlloc);
+  fprintf (stderr, "  copied:          %ld bytes\n", totalCopied);
+  fprintf (stderr, "  peak heap:       %ld bytes used, %ld bytes committed\n",
+           peakUsed, peakCommitted);
+  fprintf (stderr, "  total pause:     %ld ns (%.2f%% of %ld ns)\n", totalPause,
+           elapsed > 0 ? 100.0 * totalPause / elapsed : 0.0, elapsed);
+  fprintf (stderr, "  pause p50/p90/p99/max: %ld/%ld/%ld/%ld ns\n",
+           GcStats_percentile (50), GcStats_percentile (90),
+           GcStats_percentile (99), GcStats_percentile (100));
+  // a histogram of the pauses, in power-of-two buckets
+  for (i = 0; i < pauseCnt; ) {
+    long lo = 1, n = 0;
+    while (lo * 2 <= pauses[i])
+      lo *= 2;
+    while (i < pauseCnt && pauses[i] < lo * 2) {
+      ++n;
+      ++i;
+    }
+    fprintf (stderr, "    [%10ld, %10ld) ns: %ld\n", lo, lo * 2, n);
+  }
+  return;
+}
@@ -0,0 +1,26 @@
+#ifndef GC_STATS_H
+#define GC_STATS_H
+
+// GC telemetry, enabled by "@gcLog <file>" (one JSON object per
+// collection) and "@gcStats true" (a summary at exit).
+// All sizes are in bytes, and all times in nanoseconds.
+
+// Whether any telemetry is enabled.
+int GcStats_enabled ();
+
+// Open the log, and start the clock.
+void GcStats_init ();
+
+// A collection starts, with "used" bytes in the heap.
+void GcStats_gcStart (long used);
+
+// A collection of "kind" ends. "scanned" bytes were in the collected
+// spaces, of which "copied" survived, leaving "used" bytes in the
+// heap of "committed" bytes.
+void GcStats_gcEnd (const char *kind, long used, long copied,
+                    long scanned, long committed);
+
+// The program exits, with "used" bytes in the heap.
+void GcStats_exit (long used, long committed);
+
+#endif
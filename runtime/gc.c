@@ -2,18 +2,40 @@
 #include <stdlib.h>
 #include <string.h>
 #include <time.h>
+#include <pthread.h>
+#include <sched.h>
+#include <limits.h>
+#include <unistd.h>
+#include <signal.h>
+#include <sys/mman.h>
+#include "control.h"
+#include "gc.h"
+#include "gc-stats.h"
+#include "alloc-profile.h"
+#include "heap-dump.h"
+#include "heap-image.h"
+#include "trace.h"
 
 // Statistic info
 int gc_cnt = 0;
-long remain_before_gc;
 
-// The Gimple Garbage Collector.
-static void Tiger_gc();
+// The Gimple Garbage Collector, "full" forces a major
+// collection in the generational mode.
+static void Tiger_gc(int full);
+static void Tiger_inc_step();
+static void Tiger_inc_release();
+
+static void Tiger_heap_exit();
+
+// Set by SIGUSR1, for the next allocation to inspect the heap.
+static volatile sig_atomic_t inspectRequested = 0;
+static void Tiger_heap_inspect();
+static void Tiger_heap_signal(int sig);
 
 //===============================================================//
 // The Java Heap data structure.
 
-/*   
+/*
       ----------------------------------------------------
       |                        |                         |
       ----------------------------------------------------
@@ -22,7 +44,8 @@ static void Tiger_gc();
     from                       to
  */
 struct JavaHeap {
-  int size;         // in bytes, note that this if for semi-heap size
+  long size;        // in bytes, note that this if for semi-heap size
+  long maxSize;     // in bytes, the semi-heap size can grow up to this
   char *from;       // the "from" space pointer
   char *fromFree;   // the next "free" space in the from space
   char *to;         // the "to" space pointer
@@ -32,56 +55,542 @@ struct JavaHeap {
 
 // The Java heap, which is initialized by the following
 // "heap_init" function.
+// In the generational mode, this is the old generation.
+// In the mark-compact mode, there is no "to" space, and "from"
+// takes the whole heap.
 struct JavaHeap heap;
 
+// The young generation, only used in the generational mode.
+/*
+      ----------------------------------------------------------
+      |   old "from"   |   old "to"     |       nursery        |
+      ----------------------------------------------------------
+      \<~~ maxSize ~~>/
+                                        ^\             ^      ^
+                                        | ~~~~> free   |      |
+                                      start           end   limit
+ */
+// Objects are bump-allocated in the nursery, and the survivors
+// of a minor collection are promoted into the old "from" space.
+struct Nursery {
+  char *start;
+  char *free;
+  char *end;
+  char *limit;  // the end of the reserved space, "end" may grow to it
+};
+
+struct Nursery nursery;
+
+// The fraction (1/GC_NURSERY_RATIO) of the heap given to the nursery.
+#define GC_NURSERY_RATIO 4
+
+// In the mostly-copying mode, the chunk is a pool of pages instead,
+// each tagged with the space it belongs to (0 if free). A page holds
+// the objects smaller than a page one after the other from its start,
+// up to its end or an empty header (a NULL vptr and a 0 length),
+// while a larger object takes a run of pages on its own, the pages
+// but the first one marked as continued. So the objects of a page can
+// be found from any address into it.
+#define GC_PAGE_SHIFT 12
+#define GC_PAGE_SIZE (1L << GC_PAGE_SHIFT)
+
+static unsigned char *pageSpace;
+static unsigned char *pageCont;
+static long pageCnt;
+static long pageRover;          // where to look for free pages first
+static long pagesUsed;          // the pages of "curSpace"
+static unsigned char curSpace = 1;
+
+// The page the mutator allocates in, in [mcFree, mcLimit).
+static char *mcFree = NULL;
+static char *mcLimit = NULL;
+
+#define CARD_SIZE (1 << GC_CARD_SHIFT)
+#define CARD_ALIGN(n) (((n) + CARD_SIZE - 1) & ~(CARD_SIZE - 1))
+
+// The heap is aligned to a transparent huge page, so that it can be
+// backed by huge pages (see "Control_hugePages").
+#define GC_HUGE_PAGE_SIZE (2L * 1024 * 1024)
+
+static long pageSize;
+
+// The card table, see "gc.h". "cards" is the unbiased table,
+// and all the spaces are aligned to cards, so that no card is
+// shared by two spaces.
+unsigned char *Tiger_cardBase;
+static unsigned char *cards;
+static long cardCnt;
+
+// For each card, the first object whose header lies in it (or NULL).
+// It is maintained for the old generation, whose dirty cards
+// are scanned by the minor collection.
+static char **cardFirst;
+
+static char *heapStart;
+
+#ifdef TIGER_COMPRESSED_REFS
+char *Tiger_heapBase = NULL;
+#endif
+
+#define CARD_INDEX(p) (((unsigned long)(p) >> GC_CARD_SHIFT) \
+                       - ((unsigned long)heapStart >> GC_CARD_SHIFT))
+
+// The inline allocation buffer, see "gc.h". It is the free part of
+// the nursery in the generational mode, or of the "from" space otherwise.
+char *Tiger_allocNext = NULL;
+char *Tiger_allocLimit = NULL;
+
+// The incremental collector (see below) scans the copies from
+// "incScan" while a collection is in progress, or is idle if NULL.
+// The range being evacuated, checked by the read barrier, is empty
+// when idle.
+static char *incScan = NULL;
+char *Tiger_fromStart = NULL;
+char *Tiger_fromEnd = NULL;
+
+// Defined as 1 by the programs compiled with the read barrier.
+int Tiger_readBarrier __attribute__((weak)) = 0;
+
+// Defined as 1 by the programs compiled without GC frames.
+int Tiger_conservativeRoots __attribute__((weak)) = 0;
+
+// Defined as 1 by the programs compiled with the allocation sites.
+int Tiger_allocProfile __attribute__((weak)) = 0;
+
+// With the allocation profiler, the buffer is cut at the next sample,
+// before its real end "allocEnd". The bytes bumped since "allocStart"
+// are not counted in "sinceSample" yet. The sample is due after
+// "sampleAt" bytes, drawn at random around "Control_allocSample",
+// as a fixed interval would fall on the same site of a loop again
+// and again.
+static char *allocStart = NULL;
+static char *allocEnd = NULL;
+static long sinceSample = 0;
+static long sampleAt = 0;
+static unsigned long sampleSeed = 88172645463325252UL;
+
+// In the incremental mode, the buffer is at most GC_INC_QUANTUM
+// bytes, so that the mutator comes back to the runtime to do its
+// share of the collection.
+#define GC_INC_QUANTUM (64 * 1024)
+
+// Whether an incremental collection is in progress, so that the
+// mutator allocates in the "to" space.
+#define INC_ACTIVE() (NULL != incScan)
+
+// Give the part of the buffer bumped by the generated code back to
+// its space, before the runtime looks at the free pointers.
+static void Tiger_alloc_retire () {
+  if (NULL == Tiger_allocNext)
+    return;
+  if (GC_KIND_GENERATIONAL == Control_gcKind)
+    nursery.free = Tiger_allocNext;
+  else if (GC_KIND_MOSTLYCOPYING == Control_gcKind)
+    mcFree = Tiger_allocNext;
+  else if (INC_ACTIVE())
+    heap.toNext = Tiger_allocNext;
+  else
+    heap.fromFree = Tiger_allocNext;
+}
+
+// Cut the buffer at the next sample of the allocation profiler, so
+// that the generated code calls into the runtime for it.
+static void Tiger_alloc_cut () {
+  if (!Tiger_allocProfile)
+    return;
+  long left = sampleAt - sinceSample;
+  if (left < 0)
+    left = 0;
+  Tiger_allocLimit = allocEnd - Tiger_allocNext > left ? Tiger_allocNext + left : allocEnd;
+}
+
+// The end of the part of the buffer known to be cleared, reset by
+// every collection.
+static char *allocClean = NULL;
+
+// Take the free part of the space as the new buffer, and clear it.
+static void Tiger_alloc_refill () {
+  if (GC_KIND_GENERATIONAL == Control_gcKind) {
+    Tiger_allocNext = nursery.free;
+    Tiger_allocLimit = nursery.end;
+  } else if (GC_KIND_MOSTLYCOPYING == Control_gcKind) {
+    Tiger_allocNext = mcFree;
+    Tiger_allocLimit = mcLimit;
+  } else if (INC_ACTIVE()) {
+    Tiger_allocNext = heap.toNext;
+    Tiger_allocLimit = heap.to + heap.size;
+  } else {
+    Tiger_allocNext = heap.fromFree;
+    Tiger_allocLimit = heap.from + heap.size;
+  }
+  if (GC_KIND_INCREMENTAL == Control_gcKind
+      && Tiger_allocLimit - Tiger_allocNext > GC_INC_QUANTUM)
+    Tiger_allocLimit = Tiger_allocNext + GC_INC_QUANTUM;
+  char *dirty = Tiger_allocNext > allocClean ? Tiger_allocNext : allocClean;
+  if (Tiger_allocLimit > dirty)
+    memset(dirty, 0, Tiger_allocLimit - dirty);
+  allocClean = Tiger_allocLimit;
+  allocStart = Tiger_allocNext;
+  allocEnd = Tiger_allocLimit;
+  Tiger_alloc_cut();
+}
+
 // Given the heap size (in bytes), allocate a Java heap
-// in the C heap, initialize the relevant fields.
-void Tiger_heap_init (int heapSize) {
-  // #1: allocate a chunk of memory of size "heapSize" using "malloc"
+// with "mmap", initialize the relevant fields.
+// The chunk is reserved for the maximum heap size at once, so that
+// the semi-heaps can grow in place and the card table never moves.
+// Only the pages touched are backed by memory, and the evacuated
+// spaces are given back after every collection (see
+// "Tiger_heap_release"), so the RSS follows the live data.
+void Tiger_heap_init (long heapSize) {
+  // #1: reserve a chunk of memory of size "heapSize" using "mmap"
   if (0 >= heapSize) {
     printf("Warning: try to create a heap space less than 0.\n");
     heapSize = 1;
   }
-  char *heapChuck = (char*)malloc(heapSize);
+  // only the mostly-copying collector can run a program without
+  // GC frames, so it replaces the default one
+  if (Tiger_conservativeRoots && GC_KIND_MOSTLYCOPYING != Control_gcKind) {
+    if (GC_KIND_COPYING != Control_gcKind) {
+      printf("Error: a program compiled with \"-conservativeRoots true\" "
+             "needs the mostly-copying collector.\n");
+      exit(1);
+    }
+    Control_gcKind = GC_KIND_MOSTLYCOPYING;
+  }
+  long maxHeapSize = Control_maxHeapSize > heapSize ? Control_maxHeapSize : heapSize;
+  long nurserySize = 0;
+  long maxNurserySize = 0;
+  if (GC_KIND_GENERATIONAL == Control_gcKind) {
+    nurserySize = CARD_ALIGN(heapSize / GC_NURSERY_RATIO);
+    maxNurserySize = CARD_ALIGN(maxHeapSize / GC_NURSERY_RATIO);
+    heapSize -= heapSize / GC_NURSERY_RATIO;
+    maxHeapSize -= maxHeapSize / GC_NURSERY_RATIO;
+  }
+  int spaces = GC_KIND_MARKCOMPACT == Control_gcKind ? 1 : 2;
+  long semiSize = CARD_ALIGN(heapSize / spaces);
+  long maxSemiSize = CARD_ALIGN(maxHeapSize / spaces);
+  if (maxSemiSize < semiSize)
+    maxSemiSize = semiSize;
+  long chunkSize = (long)spaces * maxSemiSize + maxNurserySize;
+  char *heapChuck = mmap(NULL, chunkSize + GC_HUGE_PAGE_SIZE, PROT_READ | PROT_WRITE,
+                         MAP_PRIVATE | MAP_ANONYMOUS | MAP_NORESERVE, -1, 0);
+  if (MAP_FAILED == heapChuck) {
+    printf("OutOfMemoryError: cannot reserve %ld bytes for the Java heap.\n", chunkSize);
+    exit(1);
+  }
+  heapChuck = (char*)(((unsigned long)heapChuck + GC_HUGE_PAGE_SIZE - 1)
+                      & ~(GC_HUGE_PAGE_SIZE - 1));
+  pageSize = sysconf(_SC_PAGESIZE);
+  // the spaces take turns to be active, so all of them are marked
+  if (Control_hugePages)
+    madvise(heapChuck, chunkSize, MADV_HUGEPAGE);
+  heapStart = heapChuck;
+#ifdef TIGER_COMPRESSED_REFS
+  // the offset 0 is null, so the base is a word before the chunk,
+  // and every object must be reachable by a 32-bit word offset
+  Tiger_heapBase = heapChuck - sizeof(void*);
+  if (chunkSize >= (1L << 35) - (long)sizeof(void*)) {
+    printf("OutOfMemoryError: %ld bytes of Java heap cannot be addressed "
+           "by compressed references.\n", chunkSize);
+    exit(1);
+  }
+  // large objects live out of the chunk, so keep all arrays in it
+  Control_losThreshold = LONG_MAX;
+#endif
+  if (GC_KIND_INCREMENTAL == Control_gcKind) {
+    if (!Tiger_readBarrier) {
+      printf("Error: the incremental collector needs a program compiled "
+             "with \"-readBarrier true\".\n");
+      exit(1);
+    }
+    // large objects are not moved, so the read barrier would miss them
+    Control_losThreshold = LONG_MAX;
+  }
+  if (GC_KIND_MOSTLYCOPYING == Control_gcKind) {
+#ifdef TIGER_COMPRESSED_REFS
+    // a compressed reference in a register would not be recognized
+    printf("Error: the mostly-copying collector cannot run with "
+           "compressed references.\n");
+    exit(1);
+#endif
+    // the pages take both semi-spaces, and large objects get their own
+    // pages, which the stack may point into as well
+    pageCnt = chunkSize >> GC_PAGE_SHIFT;
+    pageSpace = (unsigned char*)calloc(pageCnt, sizeof(unsigned char));
+    pageCont = (unsigned char*)calloc(pageCnt, sizeof(unsigned char));
+    Control_losThreshold = LONG_MAX;
+  }
+  // the card table covers the whole chunk, whatever the collector
+  cardCnt = chunkSize >> GC_CARD_SHIFT;
+  cards = (unsigned char*)calloc(cardCnt, sizeof(unsigned char));
+  cardFirst = (char**)calloc(cardCnt, sizeof(char*));
+  Tiger_cardBase = (unsigned char*)((unsigned long)cards
+                                    - ((unsigned long)heapChuck >> GC_CARD_SHIFT));
   // #2: initialize the "size" field, note that "size" field
   // is for semi-heap, but "heapSize" is for the whole heap.
-  heap.size = heapSize >> 1;
+  heap.size = semiSize;
+  heap.maxSize = maxSemiSize;
   // #3: initialize the "from" field (with what value?)
   heap.from = heapChuck;
   // #4: initialize the "fromFree" field (with what value?)
   heap.fromFree = heapChuck;
   // #5: initialize the "to" field (with what value?)
-  heap.to = (char*)(heapChuck + heap.size);
+  heap.to = 2 == spaces ? (char*)(heapChuck + heap.maxSize) : NULL;
   // #6: initizlize the "toStart" field with NULL;
   heap.toStart = heap.to;
   // #7: initialize the "toNext" field with NULL;
   heap.toNext = heap.to;
+  // the nursery follows the two semi-spaces
+  nursery.start = heapChuck + (long)spaces * heap.maxSize;
+  nursery.free = nursery.start;
+  nursery.end = nursery.start + nurserySize;
+  nursery.limit = nursery.start + maxNurserySize;
+  Tiger_alloc_refill();
+  if (GcStats_enabled()) {
+    GcStats_init();
+    atexit(Tiger_heap_exit);
+  }
+  if (Tiger_allocProfile) {
+    sampleAt = Control_allocSample;
+    AllocProfile_init();
+  }
+  struct sigaction sa;
+  memset(&sa, 0, sizeof(sa));
+  sa.sa_handler = Tiger_heap_signal;
+  sa.sa_flags = SA_RESTART;
+  sigaction(SIGUSR1, &sa, NULL);
   return;
 }
 
-// The "prev" pointer, pointing to the top frame on the GC stack. 
-void *prev = 0;
+// The "prev" pointer, pointing to the top frame on the GC stack.
+struct Tiger_frame *prev = 0;
+
+//===============================================================//
+// The Large Object Space
+// Arrays of at least "Control_losThreshold" bytes are allocated out
+// of the Java heap, each in its own block, and never moved. Only int
+// arrays go there, which hold no references, so a large object just
+// needs to be marked when a full collection reaches it, and the
+// unmarked ones are freed afterwards.
+/*    ----------------
+      |     next     | (struct LargeObject *)
+      |--------------|
+      |     size     | (long)
+      |--------------|
+      |    marked    | (long)
+      |--------------|
+ p--->|  the array   |
+      |     ...      |
+      ----------------
+*/
+struct LargeObject {
+    struct LargeObject *next;
+    long size;
+    long marked;
+};
+
+static struct LargeObject *largeObjects = NULL;
+static long losBytes = 0;      // bytes taken by the large objects
+static long losSinceGc = 0;    // bytes allocated since the last full GC
+
+static void *Tiger_los_alloc(long size) {
+    // large objects are collected by full collections only, which are
+    // triggered once the bytes allocated since the last one exceed both
+    // a semi-heap and the large objects surviving it
+    if ((losSinceGc > heap.size && 2 * losSinceGc > losBytes)
+        || losBytes + size > Control_maxHeapSize) {
+        Tiger_alloc_retire();
+        Tiger_gc(1);
+        Tiger_alloc_refill();
+    }
+    struct LargeObject *lo = NULL;
+    if (losBytes + size <= Control_maxHeapSize)
+        lo = (struct LargeObject*)calloc(1, sizeof(struct LargeObject) + size);
+    if (NULL == lo) {
+        printf("OutOfMemoryError: cannot have enough heap space.\n");
+        exit(1);
+    }
+    lo->size = size;
+    lo->next = largeObjects;
+    largeObjects = lo;
+    losBytes += size;
+    losSinceGc += size;
+    return lo + 1;
+}
+
+// Mark the large object "p", if any, as it's not in the Java heap.
+static void *Tiger_los_mark(void *p) {
+    if (NULL != p)
+        __atomic_store_n(&((struct LargeObject*)p - 1)->marked, 1, __ATOMIC_RELAXED);
+    return p;
+}
+
+// Free the large objects unmarked by the last full collection.
+static void Tiger_los_sweep() {
+    struct LargeObject **link = &largeObjects;
+    while (NULL != *link) {
+        struct LargeObject *lo = *link;
+        if (lo->marked) {
+            lo->marked = 0;
+            link = &lo->next;
+        } else {
+            *link = lo->next;
+            losBytes -= lo->size;
+            free(lo);
+        }
+    }
+    losSinceGc = 0;
+}
 
 //===============================================================//
 // Object Model And allocation
 
-const int HEAD_SZ = sizeof(void*) * 3;
+
+// Space (in bytes) taken by objects, live or not.
+static long Tiger_heap_used () {
+  return (heap.fromFree - heap.from) + (nursery.free - nursery.start)
+    + (INC_ACTIVE() ? heap.toNext - heap.to : 0) + (pagesUsed << GC_PAGE_SHIFT) + losBytes;
+}
+
+// Space (in bytes) the heap may use without growing.
+static long Tiger_heap_committed () {
+  return (NULL == heap.to ? 1 : 2) * (long)heap.size
+    + (nursery.end - nursery.start) + losBytes;
+}
+
+// Give the pages fully inside [start, end) back to the system,
+// which reads them as zeros when touched again. The range must hold
+// no live object.
+static void Tiger_heap_release (char *start, char *end) {
+  char *first = (char*)(((unsigned long)start + pageSize - 1) & ~(pageSize - 1));
+  char *last = (char*)((unsigned long)end & ~(pageSize - 1));
+  if (first < last)
+    madvise(first, last - first, MADV_DONTNEED);
+}
+
+// Report the final state of the heap to the telemetry.
+static void Tiger_heap_exit () {
+  Tiger_alloc_retire();
+  GcStats_exit(Tiger_heap_used(), Tiger_heap_committed());
+}
+
+// Grow the semi-heaps, so that each one can hold at least "size"
+// bytes. Return 0 if the maximum heap size does not allow that.
+static int Tiger_heap_grow (long size) {
+  if (size > heap.maxSize)
+    return 0;
+  if (size > heap.size)
+    heap.size = CARD_ALIGN(size);
+  // keep the nursery in proportion to the old generation, as
+  // the number of minor collections depends on its size
+  if (GC_KIND_GENERATIONAL == Control_gcKind) {
+    long young = CARD_ALIGN(2L * heap.size / (GC_NURSERY_RATIO - 1));
+    if (young > nursery.limit - nursery.start)
+      young = nursery.limit - nursery.start;
+    if (nursery.start + young > nursery.end)
+      nursery.end = nursery.start + young;
+  }
+  return 1;
+}
+
+// Bump "sz" bytes from the space whose next free pointer is "*free",
+// recording the object start for the card it lies in.
+static char *Tiger_bump (char **free, long sz) {
+  char *p = *free;
+  long card = CARD_INDEX(p);
+  if (NULL == cardFirst[card])
+    cardFirst[card] = p;
+  *free += sz;
+  return p;
+}
+
+static char *Tiger_mc_alloc (long sz);
+
+// The size the space the mutator allocates in must have, to take
+// "sz" bytes more.
+static long Tiger_alloc_need (long sz) {
+  if (GC_KIND_MOSTLYCOPYING == Control_gcKind)
+    return (pagesUsed + (sz + GC_PAGE_SIZE - 1) / GC_PAGE_SIZE) << GC_PAGE_SHIFT;
+  return (INC_ACTIVE() ? heap.toNext - heap.to : heap.fromFree - heap.from) + sz;
+}
+
+// Allocate "sz" bytes (including the header), and clear them.
+// In the generational mode, objects go to the nursery, unless
+// they are too large for it, in which case they are allocated in
+// the old generation directly. During an incremental collection,
+// objects go to the "to" space, after a step of the collection.
+static int *Tiger_alloc (long sz) {
+  int haveGC = 0;
+  sz = TIGER_ALIGN(sz);
+  if (inspectRequested)
+    Tiger_heap_inspect();
+  // the buffer may have been cut for the allocation profiler only
+  if (Tiger_allocProfile && allocEnd - Tiger_allocNext >= sz) {
+    char *p = Tiger_allocNext;
+    Tiger_allocNext += sz;
+    allocStart = Tiger_allocNext;
+    Tiger_alloc_cut();
+    return (int*)p;
+  }
+  Tiger_alloc_retire();
+  if (INC_ACTIVE())
+    Tiger_inc_step();
+  else if (GC_KIND_INCREMENTAL == Control_gcKind)
+    Tiger_inc_release();
+  while (1) {
+    char *p = NULL;
+    long remain = heap.size - (heap.fromFree - heap.from);
+    if (GC_KIND_MOSTLYCOPYING == Control_gcKind) {
+      p = Tiger_mc_alloc(sz);
+    } else if (INC_ACTIVE()) {
+      if (heap.to + heap.size - heap.toNext >= sz)
+        p = Tiger_bump(&heap.toNext, sz);
+    } else if (GC_KIND_GENERATIONAL == Control_gcKind) {
+      if (nursery.end - nursery.free >= sz) {
+        p = nursery.free;
+        nursery.free += sz;
+      } else if (nursery.end - nursery.start < sz && remain >= sz)
+        p = Tiger_bump(&heap.fromFree, sz);
+    } else if (remain >= sz)
+      p = Tiger_bump(&heap.fromFree, sz);
+
+    if (NULL != p) {
+      memset(p, 0, sz);
+      Tiger_alloc_refill();
+      return (int*)p;
+    } else if (!haveGC || (1 == haveGC && GC_KIND_GENERATIONAL == Control_gcKind)
+               || (haveGC < 3 && GC_KIND_INCREMENTAL == Control_gcKind)) {
+      // a minor collection may not be enough, then try a major one.
+      // Finishing an incremental collection may not be either, as
+      // what was allocated meanwhile survives it, then start the next
+      // one, and finish it at once if still needed.
+      Tiger_gc(haveGC);
+      haveGC++;
+    } else if (Tiger_alloc_need(sz) > heap.size && Tiger_heap_grow(Tiger_alloc_need(sz))) {
+      // still no enough space after the collection, but the heap
+      // has not reached its maximum size yet
+      continue;
+    } else {
+      printf("OutOfMemoryError: cannot have enough heap space.\n");
+      exit(1);
+    }
+  }
+}
 
 // "new" a new object, do necessary initializations, and
 // return the pointer (reference).
+// The size of the object is in the "struct Tiger_class" at the
+// start of its vtable.
 /*    ----------------
  p--->|     vptr     | (struct cn_vtable *)
       |--------------|
-      |    size      | (int)
+      | v_0          |
+      |--------------|
+      | ...          |
       |--------------|
-      |  forwarding  | (void *)
-      |--------------|\
-      | v_0          | \
-      |--------------|  s
-      | ...          |  i
-      |--------------|  z
-      | v_{size-1}   | /e
-      ----------------/
+      | v_{n-1}      |
+      ----------------
 */
 // Try to allocate an object in the "from" space of the Java
 // heap. Read Tiger book chapter 13.3 for details on the
@@ -93,54 +602,31 @@ const int HEAD_SZ = sizeof(void*) * 3;
 //   2. if there is no enough space left in the "from" space, then
 //      you should call the function "Tiger_gc()" to collect garbages.
 //      and after the collection, there are still two sub-cases:
-//        a: if there is enough space, you can do allocations just as case 1; 
+//        a: if there is enough space, you can do allocations just as case 1;
 //        b: if there is still no enough space, you can just issue
 //           an error message ("OutOfMemory") and exit.
 //           (However, a production compiler will try to expand
 //           the Java heap.)
-void *Tiger_new (void *vtable, int size) {
-    if (0 >= size) {
-        printf("Warning: try to allocate a mem space less than 0.\n");
-        size = 1;
-    }
-    int haveGC = 0;
-    while (1) {
-        int sz = size + HEAD_SZ;
-        long remain = heap.size - (heap.fromFree - heap.from);
-        if (remain >= sz) {
-            int *pObj = (int*)heap.fromFree;
-            *(void**)pObj = vtable;
-            *(pObj + 2) = size;
-            *(void**)(pObj + 4) = NULL;
-            heap.fromFree += sz;
-            return pObj;
-        } else if (!haveGC) {
-            remain_before_gc = remain;
-            Tiger_gc();
-            haveGC = 1;
-        } else {
-            printf("OutOfMemoryError: cannot have enough heap space.\n");
-            exit(1);
-        }
-    }
+void *Tiger_new (void *vtable) {
+    int *pObj = Tiger_alloc(((struct Tiger_class*)vtable)->size);
+    *(void**)pObj = vtable;
+    return pObj;
 }
 
 // "new" an array of size "length", do necessary
 // initializations. And each array comes with an
 // extra "header" storing the array length and other information.
 /*    ----------------
- p--->|     vptr     | (void *)
+ p--->|     vptr     | (NULL)
       |--------------|
       |    length    | (int)
       |--------------|
-      |  forwarding  | (void *)
-      |--------------|\
-      | e_0          | \
-      |--------------|  s
-      | ...          |  i
-      |--------------|  z
-      | e_{length-1} | /e
-      ----------------/
+      | e_0          |
+      |--------------|
+      | ...          |
+      |--------------|
+      | e_{length-1} |
+      ----------------
 */
 // Try to allocate an array object in the "from" space of the Java
 // heap. Read Tiger book chapter 13.3 for details on the
@@ -152,7 +638,7 @@ void *Tiger_new (void *vtable, int size) {
 //   2. if there is no enough space left in the "from" space, then
 //      you should call the function "Tiger_gc()" to collect garbages.
 //      and after the collection, there are still two sub-cases:
-//        a: if there is enough space, you can do allocations just as case 1; 
+//        a: if there is enough space, you can do allocations just as case 1;
 //        b: if there is still no enough space, you can just issue
 //           an error message ("OutOfMemory") and exit.
 //           (However, a production compiler will try to expand
@@ -162,28 +648,45 @@ void *Tiger_new_array (int length) {
         printf("Warning: try to create an array with illegal length.\n");
         length = 1;
     }
-    int haveGC = 0;
-    while (1) {
-        int sz = sizeof(int) * length + HEAD_SZ;
-        long remain = heap.size - (heap.fromFree - heap.from);
-        if (remain >= sz) {
-            int *pObj = (int*)heap.fromFree;
-            *(void**)pObj = NULL;
-            *(pObj + 2) = length;
-            *(void**)(pObj + 4) = NULL;
-            heap.fromFree += sz;
-            return pObj;
-        } else if (!haveGC) {
-            remain_before_gc = remain;
-            Tiger_gc();
-            haveGC = 1;
-        } else {
-            printf("OutOfMemoryError: cannot have enough heap space.\n");
-            exit(1);
-        }
+    long size = TIGER_ARRAY_SIZE(length);
+    int *pObj = size >= Control_losThreshold ? Tiger_los_alloc(size) : Tiger_alloc(size);
+    *(void**)pObj = NULL;
+    TIGER_ARRAY_LENGTH(pObj) = length;
+    return pObj;
+}
+
+// Count the bytes bumped by the generated code since the last time,
+// and the "size" bytes of a "type" allocated at "site", and sample
+// this allocation if due.
+static void Tiger_alloc_sample (struct Tiger_alloc_site *site, const char *type, long size) {
+    size = TIGER_ALIGN(size);
+    sinceSample += Tiger_allocNext - allocStart + size;
+    allocStart = Tiger_allocNext;
+    if (sinceSample >= sampleAt) {
+        AllocProfile_sample(site, type, size, sinceSample);
+        sinceSample = 0;
+        // uniform in [1, 2 * Control_allocSample], by a xorshift
+        sampleSeed ^= sampleSeed << 13;
+        sampleSeed ^= sampleSeed >> 7;
+        sampleSeed ^= sampleSeed << 17;
+        sampleAt = Control_allocSample
+            ? 1 + (long)(sampleSeed % (2UL * Control_allocSample)) : 0;
     }
 }
 
+// The same as "Tiger_new" and "Tiger_new_array", for the programs
+// compiled with the allocation sites.
+void *Tiger_new_at (void *vtable, struct Tiger_alloc_site *site) {
+    const struct Tiger_class *c = (struct Tiger_class*)vtable;
+    Tiger_alloc_sample(site, NULL != c->name ? c->name : "?", c->size);
+    return Tiger_new(vtable);
+}
+
+void *Tiger_new_array_at (int length, struct Tiger_alloc_site *site) {
+    Tiger_alloc_sample(site, "int[]", TIGER_ARRAY_SIZE(length > 0 ? length : 1));
+    return Tiger_new_array(length);
+}
+
 //===============================================================//
 // The Gimple Garbage Collector
 // A copying collector based-on Cheney's algorithm.
@@ -194,75 +697,1178 @@ inline static void swap(void * *a, void * *b) {
     *b = mid;
 }
 
+// The forwarding pointer of a copied object overwrites its vptr,
+// tagged by the lowest bit, as objects are word-aligned.
+#define FORWARDED(p) (1UL & *(unsigned long*)(p))
+#define FORWARDING(p) ((void*)(*(unsigned long*)(p) & ~1UL))
+#define SET_FORWARDING(p, q) (*(unsigned long*)(p) = (unsigned long)(q) | 1UL)
+
+// The class of the dummy arrays which fill the unused tails of the
+// LABs of the parallel copy. A dummy is laid out as an int array,
+// whose length gives its size, but the walks of the heap can tell it
+// from a real one, and skip it.
+static const struct Tiger_class Tiger_filler_class = {0, {0, NULL}, "[filler]"};
+#define GC_FILLER(c) (&Tiger_filler_class == (c))
+
+// The size (in bytes, including the header) of the object "p"
+// of the class "c".
+static long Tiger_gc_size_of(const struct Tiger_class *c, int *p) {
+    if (NULL != c && !GC_FILLER(c)) // p is an instance-object
+        return c->size;
+    else // p is an array-object
+        return TIGER_ARRAY_SIZE(TIGER_ARRAY_LENGTH(p));
+}
+
+// The size of the object "p", which must not be forwarded.
+static long Tiger_gc_size(int *p) {
+    return Tiger_gc_size_of(*(struct Tiger_class**)p, p);
+}
+
+// Copy the object "p" of "size" bytes to "*next", and install
+// the forwarding pointer.
+static void *Tiger_gc_copy(char **next, void *p, long size) {
+    void *copy = memcpy(Tiger_bump(next, size), p, size);
+    SET_FORWARDING(p, copy);
+    return copy;
+}
+
 static void* Tiger_gc_forward(void *p) {
-    if ((char*)p >= heap.from && (char*)p < heap.from + heap.size) {
-        int *header = (int*)p;
-        void * *forwarding = (void**)(header + 4);
-        if ((char*)*forwarding >= heap.to && (char*)*forwarding <= heap.to + heap.size) return p;
-        int size = HEAD_SZ;
-
-        if (NULL != *(void**)header) { // p is an instance-object
-            size += *(header + 2);
-        } else { // p is an array-object
-            size += sizeof(int) * *(header + 2);
+    if (((char*)p >= heap.from && (char*)p < heap.from + heap.size)
+        || ((char*)p >= nursery.start && (char*)p < nursery.end)) {
+        if (FORWARDED(p)) return FORWARDING(p);
+        long size = Tiger_gc_size((int*)p);
+        // the survivors of a major collection may exceed the current
+        // size, as the nursery is evacuated too, so the "to" space can
+        // take up to its reserved size, and grows after the collection
+        if (heap.toNext + size > heap.to + heap.maxSize) {
+            printf("OutOfMemoryError: cannot have enough heap space.\n");
+            exit(1);
         }
+        return Tiger_gc_copy(&heap.toNext, p, size);
+    } else return Tiger_los_mark(p);
+}
 
-        *forwarding = memcpy(heap.toNext, p, size);
-        heap.toNext += size;
-        return *forwarding;
+// Promote the nursery object "p" into the old generation.
+static void* Tiger_gc_promote(void *p) {
+    if ((char*)p >= nursery.start && (char*)p < nursery.end) {
+        if (FORWARDED(p)) return FORWARDING(p);
+        return Tiger_gc_copy(&heap.fromFree, p, Tiger_gc_size((int*)p));
     } else return p;
 }
 
-static void Tiger_gc () {
-    ++gc_cnt;
-    clock_t stime, etime;
-    stime = clock();
-    int *cur_frame = (int*)prev;
-    while (NULL != cur_frame) {
-        // fetch the info of a gc frame
-        char *arguments_gc_map = *(char**)(cur_frame + 2);
-        int *arguments_base_addr = *(int**)(cur_frame + 4);
-        int local_ref_cnt = *(cur_frame + 6);
-
-        // forward the formals
-        int i;
-        for (i = 0; i < strlen(arguments_gc_map); ++i) if ('1' == arguments_gc_map[i]) {
-            void * *cur_formal = (void**)(arguments_base_addr + i);
-            *cur_formal = Tiger_gc_forward(*cur_formal);
+// Apply "forward" to all the reference fields of the object "p".
+// Only the set bits of the class gc map are visited.
+static void Tiger_gc_scan_object(int *p, void *(*forward)(void *)) {
+    // the class is the first field of the vtable, arrays have none
+    const struct Tiger_class *c = *(struct Tiger_class**)p;
+    if (NULL == c) return;
+    const struct Tiger_gc_map *gc_map = &c->gc_map;
+    long w, words = (gc_map->slots + GC_MAP_WORD_BITS - 1) / GC_MAP_WORD_BITS;
+    for (w = 0; w < words; ++w) {
+        unsigned long bits = gc_map->bits[w];
+        tiger_ref *base = (tiger_ref*)p + w * GC_MAP_WORD_BITS;
+        while (bits) {
+            tiger_ref *field = base + __builtin_ctzl(bits);
+            *field = Tiger_encode(forward(Tiger_decode(*field)));
+            bits &= bits - 1;
         }
+    }
+}
 
-        // forward the locals
-        for (i = 0; i < local_ref_cnt; ++i) {
-            void * **cur_local = (void* **)(cur_frame + 8 + i);
-            **cur_local = Tiger_gc_forward(**cur_local);
+// Apply "visit" to all the root slots on the GC stack.
+static void Tiger_gc_visit_roots(void (*visit)(void **)) {
+    struct Tiger_frame *cur_frame = prev;
+    while (NULL != cur_frame) {
+        // the alive slots at the current safe point of this frame
+        if (NULL != cur_frame->desc) {
+            const struct Tiger_gc_map *gc_map = &cur_frame->desc->gc_map;
+            long w, words = (gc_map->slots + GC_MAP_WORD_BITS - 1) / GC_MAP_WORD_BITS;
+            for (w = 0; w < words; ++w) {
+                unsigned long bits = gc_map->bits[w];
+                void * **base = cur_frame->slots + w * GC_MAP_WORD_BITS;
+                while (bits) {
+                    visit(base[__builtin_ctzl(bits)]);
+                    bits &= bits - 1;
+                }
+            }
         }
 
         // forward the outer environment
-        cur_frame = *(void**)cur_frame;
-    }
-
-    char *scan = heap.toStart;
-    while (scan < heap.toNext) {
-        int *p = (int*)scan;
-        void *vptr = *(void**)p;
-        if (NULL != vptr) {
-            char *gc_map = *(char**)vptr;
-            int i;
-            for (i = 0; i < strlen(gc_map); ++i) if ('1' == gc_map[i]) {
-                void * *field = (void**)(p + 6 + i * 2);
-                *field = Tiger_gc_forward(*field);
+        cur_frame = cur_frame->prev;
+    }
+}
+
+static void *(*rootForward)(void *);
+
+static void Tiger_gc_forward_root(void * *slot) {
+    *slot = rootForward(*slot);
+}
+
+// Apply "forward" to all the roots on the GC stack.
+static void Tiger_gc_scan_roots(void *(*forward)(void *)) {
+    rootForward = forward;
+    Tiger_gc_visit_roots(Tiger_gc_forward_root);
+}
+
+// Cheney's scan of the objects in [scan, *next), note that "*next"
+// grows as the objects are forwarded. The copies are laid out in
+// the breadth-first order.
+static void Tiger_gc_scan_bfs(char *scan, char **next, void *(*forward)(void *)) {
+    while (scan < *next) {
+        Tiger_gc_scan_object((int*)scan, forward);
+        scan += Tiger_gc_size((int*)scan);
+    }
+}
+
+static void *Tiger_gc_grow_array(void *array, long *cap, int elemSize) {
+    *cap = *cap ? 2 * *cap : 1024;
+    array = realloc(array, *cap * elemSize);
+    if (NULL == array) {
+        printf("OutOfMemoryError: cannot grow the GC work list.\n");
+        exit(1);
+    }
+    return array;
+}
+
+// The copies waiting to be scanned in the depth-first order.
+static void **copyStack = NULL;
+static long copyTop = 0;
+static long copyCap = 0;
+
+// Push the copies in [p, end), so that they are popped in the
+// heap order.
+static void Tiger_gc_push_copies(char *p, char *end) {
+    long i = copyTop, j;
+    for (; p < end; p += Tiger_gc_size((int*)p)) {
+        if (copyTop == copyCap)
+            copyStack = Tiger_gc_grow_array(copyStack, &copyCap, sizeof(void*));
+        copyStack[copyTop++] = p;
+    }
+    for (j = copyTop - 1; i < j; ++i, --j) {
+        void *t = copyStack[i];
+        copyStack[i] = copyStack[j];
+        copyStack[j] = t;
+    }
+}
+
+// The same scan, but the children copied by scanning an object are
+// scanned before anything copied earlier, so a linked structure is
+// laid out in the depth-first order: the children of an object right
+// after it, followed by the subtree of its first child. That is the
+// order most traversals walk it in, so they stay within few cache
+// lines and pages.
+static void Tiger_gc_scan_dfs(char *scan, char **next, void *(*forward)(void *)) {
+    Tiger_gc_push_copies(scan, *next);
+    while (copyTop > 0) {
+        char *p = copyStack[--copyTop];
+        char *first = *next;
+        Tiger_gc_scan_object((int*)p, forward);
+        Tiger_gc_push_copies(first, *next);
+    }
+}
+
+// Scan the copies in [scan, *next) in the "Control_gcOrder".
+static void Tiger_gc_scan(char *scan, char **next, void *(*forward)(void *)) {
+    if (GC_ORDER_DEPTH_FIRST == Control_gcOrder)
+        Tiger_gc_scan_dfs(scan, next, forward);
+    else
+        Tiger_gc_scan_bfs(scan, next, forward);
+}
+
+//===============================================================//
+// The Parallel Copying Collector
+// With more than one "Control_gcThreads", the copying is shared by a
+// pool of threads, the mutator thread being the worker 0:
+//   - the root slots are split among the workers;
+//   - each worker copies into its own buffer (LAB) in the "to" space,
+//     claimed by atomically bumping "heap.toNext" in whole cards, so
+//     that the "cardFirst" of a card is written by one worker only;
+//   - the forwarding pointer is installed by a CAS, and the worker
+//     losing the race takes its copy back;
+//   - the copied (grey) objects are pushed onto the deque of the
+//     worker, and an idle worker steals from the others.
+// The unused tail of each buffer is filled with a dummy array, so that
+// the "to" space can still be walked object by object (see
+// "Tiger_filler_class").
+
+#define GC_LAB_SIZE (8 * CARD_SIZE)
+
+// A deque of grey objects, in [top, bottom) of "items". The owner
+// works at the bottom, and the thieves at the top.
+struct GcDeque {
+    pthread_spinlock_t lock;
+    void * *items;
+    long top;
+    long bottom;
+    long cap;
+};
+
+struct GcWorker {
+    int id;
+    char *labNext;
+    char *labEnd;
+    struct GcDeque deque;
+};
+
+static struct GcWorker *workers = NULL;
+static pthread_barrier_t gcStart, gcEnd;
+static int idleCnt;
+static __thread struct GcWorker *curWorker;
+
+// The root slots, collected before the workers start.
+static void * **rootSlots = NULL;
+static long rootCnt = 0;
+static long rootCap = 0;
+
+static void Tiger_gc_deque_push(struct GcDeque *d, void *p) {
+    pthread_spin_lock(&d->lock);
+    long top = d->top, bottom = d->bottom;
+    if (bottom == d->cap) {
+        if (top > 0) {
+            memmove(d->items, d->items + top, (bottom - top) * sizeof(void*));
+            bottom -= top;
+            top = 0;
+        } else d->items = Tiger_gc_grow_array(d->items, &d->cap, sizeof(void*));
+    }
+    d->items[bottom++] = p;
+    // "top" and "bottom" are peeked without the lock
+    __atomic_store_n(&d->top, top, __ATOMIC_RELAXED);
+    __atomic_store_n(&d->bottom, bottom, __ATOMIC_RELAXED);
+    pthread_spin_unlock(&d->lock);
+}
+
+static int Tiger_gc_deque_empty(struct GcDeque *d) {
+    return __atomic_load_n(&d->bottom, __ATOMIC_RELAXED)
+        == __atomic_load_n(&d->top, __ATOMIC_RELAXED);
+}
+
+// Take an object from the bottom ("steal" is 0) or the top.
+static void *Tiger_gc_deque_take(struct GcDeque *d, int steal) {
+    void *p = NULL;
+    if (Tiger_gc_deque_empty(d))
+        return NULL;
+    pthread_spin_lock(&d->lock);
+    long top = d->top, bottom = d->bottom;
+    if (bottom > top)
+        p = steal ? d->items[top++] : d->items[--bottom];
+    if (bottom == top)
+        top = bottom = 0;
+    __atomic_store_n(&d->top, top, __ATOMIC_RELAXED);
+    __atomic_store_n(&d->bottom, bottom, __ATOMIC_RELAXED);
+    pthread_spin_unlock(&d->lock);
+    return p;
+}
+
+static void *Tiger_gc_steal(struct GcWorker *w) {
+    int i;
+    for (i = 1; i < Control_gcThreads; ++i) {
+        void *p = Tiger_gc_deque_take(&workers[(w->id + i) % Control_gcThreads].deque, 1);
+        if (NULL != p) return p;
+    }
+    return NULL;
+}
+
+// The smallest dummy array, signed like the sizes it is added to.
+#define GC_FILLER_SZ ((long)TIGER_ALIGN(ARRAY_HEAD_SZ))
+
+// Fill the rest of the LAB with a dummy array.
+static void Tiger_gc_lab_fill(struct GcWorker *w) {
+    long size = w->labEnd - w->labNext;
+    if (0 == size) return;
+    int *p = (int*)Tiger_bump(&w->labNext, size);
+    *(const struct Tiger_class**)p = &Tiger_filler_class;
+    TIGER_ARRAY_LENGTH(p) = (size - ARRAY_HEAD_SZ) / sizeof(int);
+}
+
+// Allocate "size" bytes in the LAB of "w", which always keeps room
+// for a dummy array at its end.
+static char *Tiger_gc_lab_alloc(struct GcWorker *w, long size) {
+    if (w->labEnd - w->labNext < size + GC_FILLER_SZ) {
+        Tiger_gc_lab_fill(w);
+        long chunk = CARD_ALIGN(size + GC_FILLER_SZ);
+        if (chunk < GC_LAB_SIZE)
+            chunk = GC_LAB_SIZE;
+        // the last chunk is cut at the limit, so that "toNext" never
+        // passes the end of the reserved "to" space
+        char *limit = heap.to + heap.maxSize;
+        char *start = __atomic_load_n(&heap.toNext, __ATOMIC_RELAXED);
+        char *end;
+        do {
+            if (limit - start < size + GC_FILLER_SZ) {
+                printf("OutOfMemoryError: cannot have enough heap space.\n");
+                exit(1);
+            }
+            end = limit - start > chunk ? start + chunk : limit;
+        } while (!__atomic_compare_exchange_n(&heap.toNext, &start, end, 1,
+                                              __ATOMIC_RELAXED, __ATOMIC_RELAXED));
+        w->labNext = start;
+        w->labEnd = end;
+    }
+    return Tiger_bump(&w->labNext, size);
+}
+
+static void* Tiger_gc_forward_par(void *p) {
+    if (((char*)p >= heap.from && (char*)p < heap.from + heap.size)
+        || ((char*)p >= nursery.start && (char*)p < nursery.end)) {
+        unsigned long *header = (unsigned long*)p;
+        unsigned long vptr = __atomic_load_n(header, __ATOMIC_ACQUIRE);
+        if (vptr & 1UL) return (void*)(vptr & ~1UL);
+        struct GcWorker *w = curWorker;
+        // the header may be overwritten by another worker from now on
+        long size = Tiger_gc_size_of((struct Tiger_class*)vptr, (int*)p);
+        void *copy = memcpy(Tiger_gc_lab_alloc(w, size), p, size);
+        *(unsigned long*)copy = vptr;
+        unsigned long expected = vptr;
+        if (__atomic_compare_exchange_n(header, &expected, (unsigned long)copy | 1UL, 0,
+                                        __ATOMIC_ACQ_REL, __ATOMIC_ACQUIRE)) {
+            Tiger_gc_deque_push(&w->deque, copy);
+            return copy;
+        }
+        // lost the race, take the copy back
+        w->labNext = copy;
+        if (cardFirst[CARD_INDEX(copy)] == copy)
+            cardFirst[CARD_INDEX(copy)] = NULL;
+        return (void*)(expected & ~1UL);
+    } else return Tiger_los_mark(p);
+}
+
+static void Tiger_gc_collect_root(void * *slot) {
+    if (rootCnt == rootCap)
+        rootSlots = Tiger_gc_grow_array(rootSlots, &rootCap, sizeof(void**));
+    rootSlots[rootCnt++] = slot;
+}
+
+static void Tiger_gc_work(struct GcWorker *w) {
+    long i;
+    void *p;
+    curWorker = w;
+    w->labNext = w->labEnd = NULL;
+    for (i = w->id; i < rootCnt; i += Control_gcThreads)
+        *rootSlots[i] = Tiger_gc_forward_par(*rootSlots[i]);
+
+    while (1) {
+        while (NULL != (p = Tiger_gc_deque_take(&w->deque, 0))
+               || NULL != (p = Tiger_gc_steal(w)))
+            Tiger_gc_scan_object((int*)p, Tiger_gc_forward_par);
+
+        // out of work: done when all the workers are, or retry
+        // when some deque gets a grey object
+        __atomic_add_fetch(&idleCnt, 1, __ATOMIC_ACQ_REL);
+        while (1) {
+            if (Control_gcThreads == __atomic_load_n(&idleCnt, __ATOMIC_ACQUIRE)) {
+                Tiger_gc_lab_fill(w);
+                return;
             }
-            scan += *(p + 2) + HEAD_SZ;
-        } else scan += *(p + 2) * sizeof(int) + HEAD_SZ;
+            for (i = 0; i < Control_gcThreads; ++i)
+                if (!Tiger_gc_deque_empty(&workers[i].deque))
+                    break;
+            if (i < Control_gcThreads) {
+                __atomic_sub_fetch(&idleCnt, 1, __ATOMIC_ACQ_REL);
+                break;
+            }
+            sched_yield();
+        }
+    }
+}
+
+static void *Tiger_gc_worker_main(void *arg) {
+    struct GcWorker *w = (struct GcWorker*)arg;
+    while (1) {
+        pthread_barrier_wait(&gcStart);
+        Tiger_gc_work(w);
+        pthread_barrier_wait(&gcEnd);
+    }
+    return NULL;
+}
+
+// Start the worker threads at the first parallel collection.
+static void Tiger_gc_workers_init() {
+    int i;
+    sigset_t workerMask, oldMask;
+    workers = (struct GcWorker*)calloc(Control_gcThreads, sizeof(struct GcWorker));
+    pthread_barrier_init(&gcStart, NULL, Control_gcThreads);
+    pthread_barrier_init(&gcEnd, NULL, Control_gcThreads);
+    for (i = 0; i < Control_gcThreads; ++i) {
+        workers[i].id = i;
+        pthread_spin_init(&workers[i].deque.lock, PTHREAD_PROCESS_PRIVATE);
     }
+    // the workers inherit the mask, so that the samples of the
+    // profiler land in the mutator, whose stack is the one of interest,
+    // and so does the request of a heap inspection, whose handler cuts
+    // the allocation buffer of the mutator
+    sigemptyset(&workerMask);
+    sigaddset(&workerMask, SIGPROF);
+    sigaddset(&workerMask, SIGUSR1);
+    pthread_sigmask(SIG_BLOCK, &workerMask, &oldMask);
+    for (i = 1; i < Control_gcThreads; ++i) {
+        pthread_t tid;
+        if (0 != pthread_create(&tid, NULL, Tiger_gc_worker_main, &workers[i])) {
+            printf("Error: cannot create the GC threads.\n");
+            exit(1);
+        }
+        pthread_detach(tid);
+    }
+    pthread_sigmask(SIG_SETMASK, &oldMask, NULL);
+}
+
+// Copy all the reachable objects into the "to" space in parallel.
+static void Tiger_gc_copying_par() {
+    if (NULL == workers)
+        Tiger_gc_workers_init();
+    rootCnt = 0;
+    Tiger_gc_visit_roots(Tiger_gc_collect_root);
+    idleCnt = 0;
+    pthread_barrier_wait(&gcStart);
+    Tiger_gc_work(&workers[0]);
+    pthread_barrier_wait(&gcEnd);
+}
 
-    swap(&heap.from, &heap.to);
+// Copy all the reachable objects into the "to" space, and flip.
+static void Tiger_gc_copying() {
+    if (Control_gcThreads > 1)
+        Tiger_gc_copying_par();
+    else {
+        Tiger_gc_scan_roots(Tiger_gc_forward);
+        Tiger_gc_scan(heap.toStart, &heap.toNext, Tiger_gc_forward);
+    }
+
+    swap((void**)&heap.from, (void**)&heap.to);
     heap.fromFree = heap.toNext;
     heap.toStart = heap.to;
     heap.toNext = heap.to;
+    // the old "from" space is free now
+    memset(cardFirst + CARD_INDEX(heap.to), 0, sizeof(char*) * (heap.size >> GC_CARD_SHIFT));
+}
+
+// A minor collection, which promotes all the live nursery objects.
+// The roots are the GC stack, plus the old objects on dirty cards.
+static void Tiger_gc_minor() {
+    char *scan = heap.fromFree;
+    Tiger_gc_scan_roots(Tiger_gc_promote);
+
+    long card, last = CARD_INDEX(scan - 1);
+    for (card = CARD_INDEX(heap.from); scan > heap.from && card <= last; ++card) {
+        if (!cards[card]) continue;
+        cards[card] = 0;
+        char *p = cardFirst[card];
+        char *cardEnd = heapStart + ((card + 1) << GC_CARD_SHIFT);
+        while (NULL != p && p < cardEnd && p < scan) {
+            Tiger_gc_scan_object((int*)p, Tiger_gc_promote);
+            p += Tiger_gc_size((int*)p);
+        }
+    }
+
+    Tiger_gc_scan(scan, &heap.fromFree, Tiger_gc_promote);
+    nursery.free = nursery.start;
+    memset(cards + CARD_INDEX(nursery.start), 0, (nursery.end - nursery.start) >> GC_CARD_SHIFT);
+}
+
+// A major collection, which copies the nursery and the old
+// generation into the old "to" space.
+static void Tiger_gc_major() {
+    Tiger_gc_copying();
+    nursery.free = nursery.start;
+    memset(cards, 0, cardCnt);
+}
+
+//===============================================================//
+// The Mark-Compact Collector
+// A sliding collector, which needs no "to" space, so the whole heap
+// is usable. As the header has no room for a forwarding pointer kept
+// until the objects are moved, the new addresses are computed from a
+// side bitmap of the live words instead (as in the Compressor):
+//   1. mark: the words of every reachable object are set in the
+//      bitmap, with an explicit mark stack;
+//   2. compute: the new address of the first live word of each block
+//      of GC_MAP_WORD_BITS words is the heap start plus the live words
+//      before the block, so the new address of a live object is that
+//      of its block plus the live words before it in the block;
+//   3. update: the roots and the fields of the live objects are
+//      redirected to the new addresses;
+//   4. slide: the live objects are moved down to their new
+//      addresses, in the heap order.
+
+static void **markStack = NULL;
+static long markTop = 0;
+static long markCap = 0;
+
+static unsigned long *liveBits = NULL;  // bit i for the i-th word of "from"
+static char **blockAddr = NULL;         // the new address of every block
+
+#define WORD_INDEX(p) (((char*)(p) - heap.from) / (long)sizeof(void*))
+#define LIVE(i) (1UL & (liveBits[(i) / GC_MAP_WORD_BITS] >> ((i) % GC_MAP_WORD_BITS)))
+
+static int Tiger_gc_in_heap(void *p) {
+    return (char*)p >= heap.from && (char*)p < heap.fromFree;
+}
+
+// Set the bits of the "n" words from the i-th one.
+static void Tiger_gc_set_live(unsigned long i, unsigned long n) {
+    while (n > 0) {
+        unsigned long bit = i % GC_MAP_WORD_BITS;
+        unsigned long k = GC_MAP_WORD_BITS - bit < n ? GC_MAP_WORD_BITS - bit : n;
+        unsigned long mask = k == GC_MAP_WORD_BITS ? ~0UL : ((1UL << k) - 1) << bit;
+        liveBits[i / GC_MAP_WORD_BITS] |= mask;
+        i += k;
+        n -= k;
+    }
+}
+
+// Mark the object "p", and push it to be scanned later.
+static void* Tiger_gc_mark(void *p) {
+    if (!Tiger_gc_in_heap(p)) return Tiger_los_mark(p);
+    long i = WORD_INDEX(p);
+    if (LIVE(i)) return p;
+    Tiger_gc_set_live(i, Tiger_gc_size((int*)p) / sizeof(void*));
+    if (markTop == markCap) {
+        markCap = markCap ? 2 * markCap : 1024;
+        markStack = (void**)realloc(markStack, markCap * sizeof(void*));
+        if (NULL == markStack) {
+            printf("OutOfMemoryError: cannot grow the mark stack.\n");
+            exit(1);
+        }
+    }
+    markStack[markTop++] = p;
+    return p;
+}
+
+// The first live object at or after "p", or "heap.fromFree".
+static char *Tiger_gc_next_live(char *p) {
+    long i = WORD_INDEX(p), end = WORD_INDEX(heap.fromFree);
+    while (i < end) {
+        unsigned long bits = liveBits[i / GC_MAP_WORD_BITS] >> (i % GC_MAP_WORD_BITS);
+        if (bits)
+            return heap.from + (i + __builtin_ctzl(bits)) * sizeof(void*);
+        i = (i / GC_MAP_WORD_BITS + 1) * GC_MAP_WORD_BITS;
+    }
+    return heap.fromFree;
+}
+
+// Redirect a reference to the new address of the object.
+static void* Tiger_gc_relocate(void *p) {
+    if (!Tiger_gc_in_heap(p)) return p;
+    long i = WORD_INDEX(p);
+    unsigned long before = liveBits[i / GC_MAP_WORD_BITS]
+        & ((1UL << (i % GC_MAP_WORD_BITS)) - 1);
+    return blockAddr[i / GC_MAP_WORD_BITS] + __builtin_popcountl(before) * sizeof(void*);
+}
+
+static void Tiger_gc_markcompact() {
+    long b, blocks = (WORD_INDEX(heap.fromFree) + GC_MAP_WORD_BITS - 1) / GC_MAP_WORD_BITS;
+    char *p, *free = heap.from;
+
+    if (NULL == liveBits) {
+        long maxBlocks = heap.maxSize / sizeof(void*) / GC_MAP_WORD_BITS + 1;
+        liveBits = (unsigned long*)calloc(maxBlocks, sizeof(unsigned long));
+        blockAddr = (char**)calloc(maxBlocks, sizeof(char*));
+        if (NULL == liveBits || NULL == blockAddr) {
+            printf("OutOfMemoryError: cannot allocate the mark bitmap.\n");
+            exit(1);
+        }
+    }
+
+    Tiger_gc_scan_roots(Tiger_gc_mark);
+    while (markTop > 0)
+        Tiger_gc_scan_object((int*)markStack[--markTop], Tiger_gc_mark);
+
+    for (b = 0; b < blocks; ++b) {
+        blockAddr[b] = free;
+        free += __builtin_popcountl(liveBits[b]) * sizeof(void*);
+    }
+
+    Tiger_gc_scan_roots(Tiger_gc_relocate);
+    for (p = Tiger_gc_next_live(heap.from); p < heap.fromFree;
+         p = Tiger_gc_next_live(p + Tiger_gc_size((int*)p)))
+        Tiger_gc_scan_object((int*)p, Tiger_gc_relocate);
+
+    p = Tiger_gc_next_live(heap.from);
+    while (p < heap.fromFree) {
+        long size = Tiger_gc_size((int*)p);
+        memmove(Tiger_gc_relocate(p), p, size);
+        p = Tiger_gc_next_live(p + size);
+    }
+    heap.fromFree = free;
+    memset(liveBits, 0, blocks * sizeof(unsigned long));
+}
+
+//===============================================================//
+// The Mostly-Copying Collector
+// Bartlett's collector, for the programs without GC frames, whose
+// roots are only known to be somewhere on the C stack:
+//   1. promote: every word of the stack and of the registers that
+//      points into a page of the current space may be a root, so the
+//      page (or the run of a large object) is moved to the next space
+//      as is, by changing its tag, and all its objects are retained;
+//   2. copy: the objects the promoted pages point to are copied into
+//      new pages of the next space, and so on, precisely with the GC
+//      maps of the classes, as in Cheney's scan. A large object is
+//      promoted rather than copied;
+//   3. free: the pages left in the current space are free, and the
+//      next space becomes the current one.
+// So the objects referenced from the stack never move, and the
+// generated code needs no GC frame and no liveness information.
+
+// The pages are tagged with 1 and 2 in turn.
+static unsigned char nextSpace;
+
+// Where the copies go, in [copyFree, copyLimit), and the first copy
+// of the page not scanned yet.
+static char *copyFree = NULL;
+static char *copyLimit = NULL;
+static char *copyScan = NULL;
+static long copyBytes;
+
+// The ranges of the next space left to scan: the promoted pages, and
+// the part of every full page of copies not scanned yet.
+struct McRange {
+    char *start;
+    char *end;
+};
+
+static struct McRange *ranges = NULL;
+static long rangeTop = 0;
+static long rangeCap = 0;
+
+// The bottom of the C stack of the main thread, from the C library.
+extern void *__libc_stack_end;
+
+#define PAGE_INDEX(p) (((char*)(p) - heapStart) >> GC_PAGE_SHIFT)
+#define PAGE_ADDR(i) (heapStart + ((long)(i) << GC_PAGE_SHIFT))
+
+// Take a run of "n" free pages for "space", first fit from the rover,
+// or return NULL.
+static char *Tiger_mc_take (long n, unsigned char space) {
+    long start, i, j;
+    for (start = pageRover; ; start = 0) {
+        long run = 0;
+        for (i = start; i < pageCnt; ++i) {
+            run = pageSpace[i] ? 0 : run + 1;
+            if (run < n) continue;
+            for (j = i - n + 1; j <= i; ++j) {
+                pageSpace[j] = space;
+                pageCont[j] = j > i - n + 1;
+            }
+            pageRover = i + 1;
+            return PAGE_ADDR(i - n + 1);
+        }
+        if (0 == start) return NULL;
+    }
+}
+
+// Allocate "sz" bytes for the mutator, in the current page, or in new
+// pages if the heap size allows. Return NULL otherwise.
+static char *Tiger_mc_alloc (long sz) {
+    char *p;
+    if (NULL != mcFree && mcLimit - mcFree >= sz) {
+        p = mcFree;
+        mcFree += sz;
+        return p;
+    }
+    long n = (sz + GC_PAGE_SIZE - 1) / GC_PAGE_SIZE;
+    if ((pagesUsed + n) << GC_PAGE_SHIFT > heap.size
+        || NULL == (p = Tiger_mc_take(n, curSpace)))
+        return NULL;
+    pagesUsed += n;
+    if (n > 1) return p;
+    // the rest of the page is the new buffer, which is cleared anew
+    allocClean = NULL;
+    mcFree = p + sz;
+    mcLimit = p + GC_PAGE_SIZE;
+    return p;
+}
+
+// Whether there is an object at "p", before "end" of its page.
+static int Tiger_mc_has_object (char *p, char *end) {
+    return p < end && (NULL != *(void**)p
+                       || (end - p >= ARRAY_HEAD_SZ && 0 != TIGER_ARRAY_LENGTH(p)));
+}
+
+static void Tiger_mc_push_range (char *start, char *end) {
+    if (rangeTop == rangeCap)
+        ranges = Tiger_gc_grow_array(ranges, &rangeCap, sizeof(struct McRange));
+    ranges[rangeTop].start = start;
+    ranges[rangeTop].end = end;
+    rangeTop++;
+}
+
+// Promote the page "i" of the current space, or the run of the large
+// object it is part of, to be scanned with the copies.
+static void Tiger_mc_promote (long i) {
+    while (pageCont[i]) --i;
+    if (curSpace != pageSpace[i]) return;
+    long j = i;
+    do {
+        pageSpace[j++] = nextSpace;
+    } while (j < pageCnt && pageCont[j]);
+    Tiger_mc_push_range(PAGE_ADDR(i), PAGE_ADDR(i + 1));
+}
+
+// Promote the page "w" points into, if any.
+static void Tiger_mc_promote_word (void *w) {
+    char *p = (char*)w;
+    if (p >= heapStart && p < PAGE_ADDR(pageCnt))
+        Tiger_mc_promote(PAGE_INDEX(p));
+}
+
+// Apply "visit" to the words of the stack, from the frame of this
+// function up to the bottom. The registers were spilled by the caller.
+__attribute__((noinline, no_sanitize_address))
+static void Tiger_mc_scan_stack (void (*visit)(void *)) {
+    void **p;
+    for (p = (void**)__builtin_frame_address(0); p < (void**)__libc_stack_end; ++p)
+        visit(*p);
+}
+
+static void *Tiger_mc_forward (void *p) {
+    if ((char*)p < heapStart || (char*)p >= PAGE_ADDR(pageCnt)
+        || curSpace != pageSpace[PAGE_INDEX(p)])
+        return p;
+    if (FORWARDED(p)) return FORWARDING(p);
+    long size = Tiger_gc_size((int*)p);
+    if (size > GC_PAGE_SIZE) {
+        Tiger_mc_promote(PAGE_INDEX(p));
+        return p;
+    }
+    if (copyLimit - copyFree < size) {
+        // end the full page with an empty header, and scan the rest
+        // of it later
+        if (NULL != copyFree) {
+            memset(copyFree, 0, copyLimit - copyFree < ARRAY_HEAD_SZ
+                   ? copyLimit - copyFree : ARRAY_HEAD_SZ);
+            Tiger_mc_push_range(copyScan, copyFree);
+        }
+        copyFree = Tiger_mc_take(1, nextSpace);
+        if (NULL == copyFree) {
+            printf("OutOfMemoryError: cannot have enough heap space.\n");
+            exit(1);
+        }
+        copyScan = copyFree;
+        copyLimit = copyFree + GC_PAGE_SIZE;
+    }
+    void *copy = memcpy(copyFree, p, size);
+    SET_FORWARDING(p, copy);
+    copyFree += size;
+    copyBytes += size;
+    return copy;
+}
+
+// Collect, and return the bytes copied.
+static long Tiger_gc_mostlycopying () {
+    long k = 0, i;
+    nextSpace = 3 - curSpace;
+    copyFree = copyLimit = copyScan = NULL;
+    copyBytes = 0;
+    rangeTop = 0;
+
+    __builtin_unwind_init();
+    Tiger_mc_scan_stack(Tiger_mc_promote_word);
+
+    while (1) {
+        if (k < rangeTop) {
+            char *p = ranges[k].start, *end = ranges[k].end;
+            k++;
+            while (Tiger_mc_has_object(p, end)) {
+                Tiger_gc_scan_object((int*)p, Tiger_mc_forward);
+                p += Tiger_gc_size((int*)p);
+            }
+        } else if (copyScan < copyFree) {
+            // step over the copy first, as scanning it may start a new page
+            char *p = copyScan;
+            copyScan += Tiger_gc_size((int*)p);
+            Tiger_gc_scan_object((int*)p, Tiger_mc_forward);
+        } else break;
+    }
+
+    // free the pages left, and give them back
+    long first = -1;
+    pagesUsed = 0;
+    for (i = 0; i <= pageCnt; ++i) {
+        if (i < pageCnt && curSpace == pageSpace[i]) {
+            pageSpace[i] = 0;
+            pageCont[i] = 0;
+            if (first < 0) first = i;
+            continue;
+        }
+        if (first >= 0) {
+            Tiger_heap_release(PAGE_ADDR(first), PAGE_ADDR(i));
+            first = -1;
+        }
+        if (i < pageCnt && 0 != pageSpace[i])
+            pagesUsed++;
+    }
+    curSpace = nextSpace;
+    pageRover = 0;
+
+    // the mutator goes on in the last page of copies
+    mcFree = copyFree;
+    mcLimit = copyLimit;
+    return copyBytes;
+}
+
+//===============================================================//
+// Adaptive heap sizing
+
+// Total time spent in the collector.
+static clock_t gc_time = 0;
+
+// Resize the semi-heaps after a full collection, which leaves "live"
+// bytes in the "from" space.
+// In a copying collector, the work of a collection is proportional to
+// the live data, and the mutator runs until the free part of the
+// semi-heap is used up, so the survival rate (live / size) predicts
+// the GC overhead. The semi-heaps are grown so that the survival rate
+// meets the target overhead, and doubled if the measured overhead is
+// still above the target.
+static void Tiger_heap_resize (long live) {
+    long size = heap.size;
+    if (live * 100 > (long)Control_gcOverhead * heap.size)
+        size = live * 100 / Control_gcOverhead;
+    clock_t now = clock();
+    if (now > 0 && gc_time * 100 > (long)Control_gcOverhead * now && 2L * heap.size > size)
+        size = 2L * heap.size;
+    if (size > heap.maxSize)
+        size = heap.maxSize;
+    Tiger_heap_grow(size);
+}
+
+//===============================================================//
+// The Incremental Collector
+// Baker's copying collector, on the two semi-spaces, which bounds the
+// pauses rather than the total time:
+//   1. flip: when the "from" space is full, only the roots are
+//      forwarded, and the mutator goes on allocating in the "to"
+//      space;
+//   2. steps: each time the mutator has allocated GC_INC_QUANTUM
+//      bytes, the copies are scanned for up to "Control_gcPause"
+//      microseconds, the objects allocated since the flip included
+//      (they point only to the "to" space, so that is cheap). A step
+//      scans at least GC_INC_PACE times what was allocated, whatever
+//      the budget, so that the scan catches up before the "to" space
+//      is full, if the live data fits in half of it;
+//   3. end: when the scan catches up with the "to" space, the spaces
+//      swap. If the "to" space fills up first, the rest of the scan
+//      is done at once.
+// Meanwhile, the read barrier of the generated code ("Tiger_read")
+// forwards every reference loaded from the evacuated space, so the
+// mutator never sees an old copy, and never stores one.
+
+// The scan checks the clock after this many objects.
+#define GC_INC_CHECK 64
+
+#define GC_INC_PACE 2
+
+// The evacuated space is given back GC_INC_RELEASE bytes at a time,
+// each time the mutator takes a new buffer, as doing it at once
+// would take longer than a step.
+#define GC_INC_RELEASE (16 * GC_INC_QUANTUM)
+
+static char *releaseNext = NULL;
+static char *releaseEnd = NULL;
+
+static void Tiger_inc_release() {
+    if (releaseNext >= releaseEnd)
+        return;
+    char *end = releaseEnd - releaseNext > GC_INC_RELEASE ? releaseNext + GC_INC_RELEASE : releaseEnd;
+    Tiger_heap_release(releaseNext, end);
+    releaseNext = end;
+}
+
+static void* Tiger_inc_forward(void *p) {
+    if ((char*)p >= Tiger_fromStart && (char*)p < Tiger_fromEnd) {
+        if (FORWARDED(p)) return FORWARDING(p);
+        long size = Tiger_gc_size((int*)p);
+        if (heap.toNext + size > heap.to + heap.maxSize) {
+            printf("OutOfMemoryError: cannot have enough heap space.\n");
+            exit(1);
+        }
+        return Tiger_gc_copy(&heap.toNext, p, size);
+    } else return p;
+}
+
+// The slow path of the read barrier: copy the object "*field" points
+// to, if not yet, and update the field. The copy is bumped from the
+// allocation buffer, which is cleared, so it stays a valid buffer.
+void *Tiger_read_slow (tiger_ref *field) {
+    heap.toNext = Tiger_allocNext;
+    void *p = Tiger_inc_forward(Tiger_decode(*field));
+    Tiger_allocNext = heap.toNext;
+    if (Tiger_allocLimit < Tiger_allocNext)
+        Tiger_allocLimit = Tiger_allocNext;
+    *field = Tiger_encode(p);
+    return p;
+}
+
+static void Tiger_inc_flip() {
+    // the rest of the old space is about to be used again
+    releaseNext = releaseEnd = NULL;
+    Tiger_fromStart = heap.from;
+    Tiger_fromEnd = heap.fromFree;
+    incScan = heap.toNext;
+    Tiger_gc_scan_roots(Tiger_inc_forward);
+}
+
+static void Tiger_inc_end() {
+    swap((void**)&heap.from, (void**)&heap.to);
+    heap.fromFree = heap.toNext;
+    heap.toStart = heap.to;
+    heap.toNext = heap.to;
+    Tiger_fromStart = Tiger_fromEnd = NULL;
+    incScan = NULL;
+    // the old "from" space is free now
+    memset(cardFirst + CARD_INDEX(heap.to), 0, sizeof(char*) * (heap.size >> GC_CARD_SHIFT));
+    Tiger_heap_resize(heap.fromFree - heap.from);
+}
+
+// Scan the copies until the pause budget is used up, or to the end
+// of the collection if "all". Return the bytes scanned, and set
+// "*copied" to the bytes copied.
+static long Tiger_inc_scan(int all, long *copied) {
+    struct timespec start, now;
+    long budget = Control_gcPause * 1000L, n = 0;
+    char *scan = incScan, *next = heap.toNext;
+    clock_gettime(CLOCK_MONOTONIC, &start);
+    while (incScan < heap.toNext) {
+        Tiger_gc_scan_object((int*)incScan, Tiger_inc_forward);
+        incScan += Tiger_gc_size((int*)incScan);
+        if (!all && 0 == ++n % GC_INC_CHECK
+        && incScan - scan >= GC_INC_PACE * GC_INC_QUANTUM) {
+            clock_gettime(CLOCK_MONOTONIC, &now);
+            if ((now.tv_sec - start.tv_sec) * 1000000000L
+                + (now.tv_nsec - start.tv_nsec) >= budget) {
+                *copied = heap.toNext - next;
+                return incScan - scan;
+            }
+        }
+    }
+    *copied = heap.toNext - next;
+    long scanned = incScan - scan;
+    Tiger_inc_end();
+    return scanned;
+}
+
+// A step of the collection in progress.
+static void Tiger_inc_step() {
+    clock_t stime = clock();
+    long copied, scanned;
+    char *oldFrom = heap.from, *oldFree = heap.fromFree;
+    if (GcStats_enabled())
+        GcStats_gcStart(Tiger_heap_used());
+    if (NULL != Tiger_traceBuf)
+        Tiger_trace_event("GC", 'B');
+    scanned = Tiger_inc_scan(0, &copied);
+    if (!INC_ACTIVE()) {
+        allocClean = NULL;
+        releaseNext = oldFrom;
+        releaseEnd = oldFree;
+    }
+    gc_time += clock() - stime;
+    if (NULL != Tiger_traceBuf)
+        Tiger_trace_event("GC", 'E');
+    if (GcStats_enabled())
+        GcStats_gcEnd("step", Tiger_heap_used(), copied, scanned, Tiger_heap_committed());
+}
+
+static void Tiger_gc (int full) {
+    ++gc_cnt;
+    clock_t stime, etime;
+    stime = clock();
+    long used = Tiger_heap_used();
+    long scanned = used, copied;
+    const char *kind;
+    char *oldFrom = heap.from, *oldFree = heap.fromFree;
+    if (GcStats_enabled())
+        GcStats_gcStart(used);
+    if (NULL != Tiger_traceBuf)
+        Tiger_trace_event("GC", 'B');
+
+    if (GC_KIND_GENERATIONAL == Control_gcKind) {
+        // A minor collection is safe only if the old generation
+        // can hold the whole nursery in the worst case.
+        if (!full && heap.size - (heap.fromFree - heap.from) >= nursery.free - nursery.start) {
+            char *oldFree = heap.fromFree;
+            kind = "minor";
+            scanned = nursery.free - nursery.start;
+            Tiger_gc_minor();
+            copied = heap.fromFree - oldFree;
+        } else {
+            kind = "major";
+            Tiger_gc_major();
+            Tiger_los_sweep();
+            copied = heap.fromFree - heap.from;
+            Tiger_heap_resize(heap.fromFree - heap.from);
+        }
+    } else if (GC_KIND_INCREMENTAL == Control_gcKind) {
+        // start a collection, or finish it at once if the mutator
+        // has used up the "to" space
+        if (!INC_ACTIVE()) {
+            kind = "flip";
+            Tiger_inc_flip();
+            copied = heap.toNext - heap.to;
+        } else {
+            kind = "finish";
+            scanned = Tiger_inc_scan(1, &copied);
+        }
+    } else if (GC_KIND_MOSTLYCOPYING == Control_gcKind) {
+        kind = "mostlycopying";
+        copied = Tiger_gc_mostlycopying();
+        Tiger_heap_resize(pagesUsed << GC_PAGE_SHIFT);
+    } else if (GC_KIND_MARKCOMPACT == Control_gcKind) {
+        kind = "markcompact";
+        Tiger_gc_markcompact();
+        Tiger_los_sweep();
+        copied = heap.fromFree - heap.from;
+        Tiger_heap_resize(heap.fromFree - heap.from);
+    } else {
+        kind = "copying";
+        Tiger_gc_copying();
+        Tiger_los_sweep();
+        copied = heap.fromFree - heap.from;
+        Tiger_heap_resize(heap.fromFree - heap.from);
+    }
+
+    // the free space holds garbage now
+    allocClean = NULL;
+
+    // give back the evacuated "from" space after a flip, or the space
+    // freed by the compaction. The nursery is kept, as it is filled
+    // again at once.
+    if (heap.from != oldFrom)
+        Tiger_heap_release(oldFrom, oldFree);
+    else
+        Tiger_heap_release(heap.fromFree, oldFree);
 
     etime = clock();
-    long spt = 1000 * (etime - stime) / CLOCKS_PER_SEC;
-    long collect_space = remain_before_gc - (heap.size - (heap.fromFree - heap.from));
-    printf("%d round of GC: %ldms, collected %ld bytes\n.", gc_cnt, spt, collect_space);
+    gc_time += etime - stime;
+    if (NULL != Tiger_traceBuf)
+        Tiger_trace_event("GC", 'E');
+    if (GcStats_enabled())
+        GcStats_gcEnd(kind, Tiger_heap_used(), copied, scanned, Tiger_heap_committed());
+}
+
+//===============================================================//
+// Heap images
+// The objects of a heap image (see "heap-image.h") are laid out back
+// to back, so they are placed in the "from" space (the old generation)
+// at once, as if allocated one by one. The pages of the mostly-copying
+// collector cannot take a run of objects across them.
+
+// Take "size" bytes at the free end of the "from" space, let "fill"
+// put the objects there, and return where, or NULL if there is no
+// room even after a full collection.
+char *Tiger_heap_place (long size, void (*fill)(char *)) {
+    if (GC_KIND_MOSTLYCOPYING == Control_gcKind)
+        return NULL;
+    Tiger_alloc_retire();
+    // an incremental collection in progress allocates in the "to"
+    // space, so finish it first
+    while (INC_ACTIVE())
+        Tiger_gc(1);
+    int haveGC = 0;
+    while (heap.size - (heap.fromFree - heap.from) < size) {
+        if (!haveGC) {
+            do Tiger_gc(1); while (INC_ACTIVE());
+            haveGC = 1;
+        } else if (!Tiger_heap_grow(heap.fromFree - heap.from + size)) {
+            Tiger_alloc_refill();
+            return NULL;
+        }
+    }
+
+    char *base = heap.fromFree;
+    fill(base);
+    while (heap.fromFree < base + size)
+        Tiger_bump(&heap.fromFree, Tiger_gc_size((int*)heap.fromFree));
+    Tiger_alloc_refill();
+    return base;
+}
+
+//===============================================================//
+// Heap inspection
+// On SIGUSR1, the next allocation does a full collection, then walks
+// the heap object by object (see "heap-dump.h"), so that a running
+// program can be looked into. The signal handler only sets a flag
+// and cuts the allocation buffer, as the heap may be in the middle
+// of a change when it comes. The limit is cut to the next byte, so
+// that the room left is none, or below none if the signal comes in
+// the middle of an inline allocation, and either way the next
+// allocation goes to the runtime.
+
+static void Tiger_heap_signal (int sig) {
+    (void)sig;
+    inspectRequested = 1;
+    Tiger_allocLimit = Tiger_allocNext;
+}
+
+// Apply "visit" to every object in [start, end), but the dummies.
+static void Tiger_heap_walk_range (char *start, char *end, void (*visit)(int *, long)) {
+    char *p;
+    long size;
+    for (p = start; p < end; p += size) {
+        size = Tiger_gc_size((int*)p);
+        if (!GC_FILLER(*(struct Tiger_class**)p))
+            visit((int*)p, size);
+    }
+}
+
+// Apply "visit" to every object in the heap, the large ones included.
+static void Tiger_heap_walk (void (*visit)(int *, long)) {
+    char *p;
+    long size;
+    if (GC_KIND_MOSTLYCOPYING == Control_gcKind) {
+        long i;
+        for (i = 0; i < pageCnt; ++i) {
+            if (curSpace != pageSpace[i] || pageCont[i]) continue;
+            for (p = PAGE_ADDR(i); Tiger_mc_has_object(p, PAGE_ADDR(i + 1)); p += size)
+                visit((int*)p, size = Tiger_gc_size((int*)p));
+        }
+    } else {
+        Tiger_heap_walk_range(heap.from, heap.fromFree, visit);
+        Tiger_heap_walk_range(nursery.start, nursery.free, visit);
+    }
+    struct LargeObject *lo;
+    for (lo = largeObjects; NULL != lo; lo = lo->next)
+        visit((int*)(lo + 1), lo->size);
+}
+
+static void Tiger_heap_dump_root (void **slot) {
+    HeapDump_root(*slot);
+}
+
+// A root of the conservative stack scan is the object the word
+// points into, if any.
+static void Tiger_heap_dump_word (void *w) {
+    char *p = (char*)w, *q;
+    if (p < heapStart || p >= PAGE_ADDR(pageCnt)) return;
+    long i = PAGE_INDEX(p);
+    while (pageCont[i]) --i;
+    if (curSpace != pageSpace[i]) return;
+    for (q = PAGE_ADDR(i); Tiger_mc_has_object(q, PAGE_ADDR(i + 1)); ) {
+        char *next = q + Tiger_gc_size((int*)q);
+        if (p < next) {
+            HeapDump_root(q);
+            return;
+        }
+        q = next;
+    }
+}
+
+static void Tiger_heap_inspect () {
+    inspectRequested = 0;
+    Tiger_alloc_retire();
+    // an incremental collection in progress keeps what was allocated
+    // since its flip, so finish it, then run a whole new one, which
+    // holds only the live objects
+    while (INC_ACTIVE())
+        Tiger_gc(1);
+    do Tiger_gc(1); while (INC_ACTIVE());
+    Tiger_alloc_refill();
+
+    HeapDump_begin();
+    if (GC_KIND_MOSTLYCOPYING == Control_gcKind) {
+        __builtin_unwind_init();
+        Tiger_mc_scan_stack(Tiger_heap_dump_word);
+    } else
+        Tiger_gc_visit_roots(Tiger_heap_dump_root);
+    Tiger_heap_walk(HeapDump_object);
+    HeapDump_end();
 }
@@ -0,0 +1,202 @@
+#ifndef GC_H
+#define GC_H
+
+// Each card covers (1 << GC_CARD_SHIFT) bytes of the Java heap.
+#define GC_CARD_SHIFT 9
+
+// The card table, biased by the heap start address, so that
+// the card of an address "p" is "Tiger_cardBase[p >> GC_CARD_SHIFT]".
+// It covers the whole Java heap, so the write barrier is safe
+// under any collector.
+extern unsigned char *Tiger_cardBase;
+
+// The write barrier, which is emitted after every store of a
+// reference into a field of the object "obj". It dirties the
+// card holding the header of "obj", so that a minor collection
+// can find the old-to-young pointers without scanning the
+// whole old generation.
+#define TIGER_WRITE_BARRIER(obj) \
+  (Tiger_cardBase[(unsigned long)(obj) >> GC_CARD_SHIFT] = 1)
+
+// The inline allocation buffer. The generated code allocates an
+// object of "n" bytes by bumping "Tiger_allocNext", if there are at
+// least "n" bytes left before "Tiger_allocLimit", and calls into the
+// runtime ("Tiger_new" or "Tiger_new_array") only otherwise.
+// The buffer is cleared in advance, so the fast path initializes
+// only the header.
+extern char *Tiger_allocNext;
+extern char *Tiger_allocLimit;
+
+// With compressed references (the "-compressedRefs" option of the
+// compiler), a reference field of an object is a 32-bit offset from
+// "Tiger_heapBase", in words, so up to 32G of heap is addressable
+// and 0 stands for null. The references on the stack stay pointers.
+// Both the generated code and the runtime library must be compiled
+// with TIGER_COMPRESSED_REFS defined.
+#ifdef TIGER_COMPRESSED_REFS
+typedef unsigned int tiger_ref;
+extern char *Tiger_heapBase;
+
+static inline tiger_ref Tiger_encode (void *p) {
+  return p ? (tiger_ref)(((char*)p - Tiger_heapBase) >> 3) : 0;
+}
+
+static inline void *Tiger_decode (tiger_ref r) {
+  return r ? Tiger_heapBase + ((unsigned long)r << 3) : NULL;
+}
+#else
+typedef void *tiger_ref;
+
+static inline tiger_ref Tiger_encode (void *p) { return p; }
+
+static inline void *Tiger_decode (tiger_ref r) { return r; }
+#endif
+
+// The read barrier of the incremental collector, emitted for every
+// load of a reference field by programs compiled with "-readBarrier
+// true". While a collection is in progress, a reference into the
+// space being evacuated, [Tiger_fromStart, Tiger_fromEnd), is
+// forwarded to the copy, and the field updated. The range is empty
+// otherwise, so the barrier is a not-taken branch.
+extern char *Tiger_fromStart;
+extern char *Tiger_fromEnd;
+void *Tiger_read_slow (tiger_ref *field);
+
+static inline void *Tiger_read (tiger_ref *field) {
+  void *p = Tiger_decode(*field);
+  if (__builtin_expect((char*)p >= Tiger_fromStart && (char*)p < Tiger_fromEnd, 0))
+    return Tiger_read_slow(field);
+  return p;
+}
+
+// Defined as 1 by the programs compiled with the read barrier.
+extern int Tiger_readBarrier;
+
+// Defined as 1 by the programs compiled with "-conservativeRoots
+// true", which push no GC frames, so that the roots can only be
+// found by scanning the C stack (see the mostly-copying collector).
+extern int Tiger_conservativeRoots;
+
+// The size of an object is rounded up to a multiple of a word.
+#define TIGER_ALIGN(n) (((n) + sizeof(void*) - 1) & ~(sizeof(void*) - 1))
+
+// The object header is one word, the vptr, and the size of an
+// object is in its class (see "struct Tiger_class"). An array has
+// a NULL vptr, followed by its length, and then the elements.
+// While collecting, the first word of a copied object is overwritten
+// by the forwarding pointer, tagged with the lowest bit.
+/*    ----------------          ----------------
+ p--->|     vptr     |     p--->|     NULL     |
+      |--------------|          |--------------|
+      | v_0          |          |    length    | (int)
+      | ...          |          |--------------|
+      | v_{n-1}      |          | e_0 ...      | (int)
+      ----------------          ----------------
+*/
+#define HEAD_SZ ((int)sizeof(void*))
+#define ARRAY_HEAD_SZ ((int)(sizeof(void*) + sizeof(int)))
+
+// The size of an array of "n" ints, the header included. The length
+// stays an int, as the lengths and the indices of MiniJava arrays
+// are: a longer array could not be indexed. The size is computed in
+// 64 bits, so it never overflows.
+#define TIGER_ARRAY_SIZE(n) ((long)TIGER_ALIGN(sizeof(int) * (long)(n) + ARRAY_HEAD_SZ))
+
+// The length field in the header of the array "a", and its i-th
+// element, counted in ints from "a". The base is a long, so that
+// the index arithmetic is done in 64 bits.
+#define TIGER_ARRAY_LENGTH(a) (((int*)(a))[2])
+#define TIGER_ARRAY_BASE 3L
+
+// Allocate an object of the class of "vtable", or an int array,
+// both cleared, collecting if needed.
+void *Tiger_new (void *vtable);
+void *Tiger_new_array (int length);
+
+// An allocation site of a program compiled with "-allocProfile
+// true", a static of its method. The generated code calls
+// "Tiger_new_at" or "Tiger_new_array_at" with it rather than
+// "Tiger_new" or "Tiger_new_array", and the buffer is cut at the
+// next sample, so the fast path stays as it is.
+struct Tiger_alloc_site {
+  const char *method;           // "Class.method"
+  int index;                    // of the site in the method
+  const char *type;             // the class allocated
+  long samples;
+  long objects;
+  long bytes;
+  struct Tiger_alloc_site *next;
+};
+
+void *Tiger_new_at (void *vtable, struct Tiger_alloc_site *site);
+void *Tiger_new_array_at (int length, struct Tiger_alloc_site *site);
+
+// Defined as 1 by the programs compiled with the allocation sites.
+extern int Tiger_allocProfile;
+
+// The method compiled with "-heapImage Class.method" starts with
+// "Tiger_image_restore", which returns 1 if the structure it built
+// for the same arguments in an earlier run is restored to "*result"
+// (see "heap-image.h"), and the method returns it at once. Otherwise,
+// "Tiger_image_save" is called with the result at its return.
+int Tiger_image_restore (const char *method, const long *args, int nargs, void **result);
+void Tiger_image_save (const char *method, const long *args, int nargs, void *result);
+
+// Create the Java heap of "heapSize" bytes.
+void Tiger_heap_init (long heapSize);
+
+// Number of collections so far.
+extern int gc_cnt;
+
+// A GC map is a packed bitmap, in which bit i is set if the i-th
+// slot holds a reference. "slots" is the number of slots up to the
+// last reference, so the collector never looks past it.
+// For a class, the slots are the "tiger_ref"-sized pieces of an
+// object (the header included), and the map is in the
+// "struct Tiger_class" of its vtable.
+struct Tiger_gc_map {
+  long slots;
+  const unsigned long *bits;
+};
+
+#define GC_MAP_WORD_BITS (8 * sizeof(unsigned long))
+
+// The first field of every vtable, which describes the class to
+// the collector.
+struct Tiger_class {
+  long size;                    // of an instance, the header included
+  struct Tiger_gc_map gc_map;   // the reference fields of an instance
+  const char *name;             // for the profilers
+};
+
+// The read-only descriptor of a safe point (a call or an allocation),
+// generated once for each site by the compiler.
+struct Tiger_frame_desc {
+  struct Tiger_gc_map gc_map;   // the alive slots at this site
+};
+
+// A frame on the GC stack. It's a local struct of the method,
+// pushed at the entry and popped at the return, so that a call
+// costs only one store of "desc".
+/*    ----------------
+      |     prev     | (the caller's frame)
+      |--------------|
+      |     desc     | (the current safe point)
+      |--------------|\
+      | &slot_0      | \
+      |--------------|  reference formals
+      | ...          |  and locals
+      |--------------|  /
+      | &slot_{n-1}  | /
+      ----------------
+*/
+struct Tiger_frame {
+  struct Tiger_frame *prev;
+  const struct Tiger_frame_desc *desc;
+  void **slots[];
+};
+
+// The top frame on the GC stack.
+extern struct Tiger_frame *prev;
+
+#endif
@@ -0,0 +1,166 @@
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include "control.h"
+#include "gc.h"
+#include "heap-dump.h"
+
+#define HEAP_DUMP_VERSION 1
+
+// A line of the histogram.
+struct ClassCount {
+  const struct Tiger_class *c;  // NULL for the int arrays
+  long instances;
+  long bytes;
+  int dumped;                   // whether the 'C' record is written
+};
+
+static struct ClassCount *counts = NULL;
+static long countCnt = 0;
+static long countCap = 0;
+
+static int inspectCnt = 0;
+static FILE *dump = NULL;
+
+static void HeapDump_write (const void *p, size_t n)
+{
+  if (NULL != dump && 1 != fwrite (p, n, 1, dump)) {
+    printf ("Error: cannot write the heap dump.\n");
+    fclose (dump);
+    dump = NULL;
+  }
+  return;
+}
+
+static void HeapDump_u8 (char v) { HeapDump_write (&v, sizeof v); }
+static void HeapDump_u32 (unsigned int v) { HeapDump_write (&v, sizeof v); }
+static void HeapDump_u64 (unsigned long v) { HeapDump_write (&v, sizeof v); }
+
+void HeapDump_begin ()
+{
+  inspectCnt++;
+  countCnt = 0;
+  if (NULL == Control_heapDump)
+    return;
+  char name[4096];
+  snprintf (name, sizeof name, "%s.%d", Control_heapDump, inspectCnt);
+  dump = fopen (name, "wb");
+  if (NULL == dump) {
+    printf ("Error: cannot open the heap dump: %s\n", name);
+    return;
+  }
+  HeapDump_u8 ('H');
+  HeapDump_write ("TIGERHD", 7);
+  HeapDump_u32 (HEAP_DUMP_VERSION);
+  return;
+}
+
+// The line of the class "c", found by address, as there are few.
+static struct ClassCount *HeapDump_count (const struct Tiger_class *c)
+{
+  long i;
+
+  for (i = 0; i < countCnt; i++)
+    if (counts[i].c == c)
+      return &counts[i];
+  if (countCnt == countCap) {
+    countCap = countCap ? 2 * countCap : 16;
+    counts = (struct ClassCount *)realloc (counts, countCap * sizeof (struct ClassCount));
+    if (NULL == counts) {
+      printf ("OutOfMemoryError: cannot record the heap histogram.\n");
+      exit (1);
+    }
+  }
+  memset (&counts[countCnt], 0, sizeof (struct ClassCount));
+  counts[countCnt].c = c;
+  return &counts[countCnt++];
+}
+
+static const char *HeapDump_name (const struct Tiger_class *c)
+{
+  if (NULL == c)
+    return "int[]";
+  return NULL != c->name ? c->name : "?";
+}
+
+void HeapDump_object (int *p, long size)
+{
+  const struct Tiger_class *c = *(struct Tiger_class **)p;
+  struct ClassCount *count = HeapDump_count (c);
+  count->instances++;
+  count->bytes += size;
+  if (NULL == dump)
+    return;
+
+  if (!count->dumped && NULL != c) {
+    const char *name = HeapDump_name (c);
+    HeapDump_u8 ('C');
+    HeapDump_u64 ((unsigned long)c);
+    HeapDump_u32 (strlen (name));
+    HeapDump_write (name, strlen (name));
+  }
+  count->dumped = 1;
+
+  // the non-null references, from the class gc map
+  unsigned int n = 0;
+  long w, words = NULL == c ? 0 : (c->gc_map.slots + GC_MAP_WORD_BITS - 1) / GC_MAP_WORD_BITS;
+  for (w = 0; w < words; w++) {
+    unsigned long bits = c->gc_map.bits[w];
+    for (; bits; bits &= bits - 1)
+      n += NULL != Tiger_decode (((tiger_ref *)p)[w * GC_MAP_WORD_BITS + __builtin_ctzl (bits)]);
+  }
+  HeapDump_u8 ('O');
+  HeapDump_u64 ((unsigned long)p);
+  HeapDump_u64 ((unsigned long)c);
+  HeapDump_u64 (size);
+  HeapDump_u32 (n);
+  for (w = 0; w < words; w++) {
+    unsigned long bits = c->gc_map.bits[w];
+    for (; bits; bits &= bits - 1) {
+      void *q = Tiger_decode (((tiger_ref *)p)[w * GC_MAP_WORD_BITS + __builtin_ctzl (bits)]);
+      if (NULL != q)
+        HeapDump_u64 ((unsigned long)q);
+    }
+  }
+  return;
+}
+
+void HeapDump_root (void *p)
+{
+  if (NULL == dump || NULL == p)
+    return;
+  HeapDump_u8 ('R');
+  HeapDump_u64 ((unsigned long)p);
+  return;
+}
+
+// The lines by decreasing bytes.
+static int HeapDump_cmp (const void *a, const void *b)
+{
+  long x = ((const struct ClassCount *)a)->bytes, y = ((const struct ClassCount *)b)->bytes;
+  return x > y ? -1 : x < y;
+}
+
+void HeapDump_end ()
+{
+  long i, instances = 0, bytes = 0;
+
+  if (NULL != dump) {
+    HeapDump_u8 ('E');
+    if (NULL != dump)
+      fclose (dump);
+    dump = NULL;
+  }
+
+  qsort (counts, countCnt, sizeof (struct ClassCount), HeapDump_cmp);
+  fprintf (stderr, "Heap histogram #%d (live objects):\n", inspectCnt);
+  fprintf (stderr, " %4s %12s %16s  %s\n", "num", "instances", "bytes", "class");
+  for (i = 0; i < countCnt; i++) {
+    fprintf (stderr, " %3ld: %12ld %16ld  %s\n", i + 1, counts[i].instances,
+             counts[i].bytes, HeapDump_name (counts[i].c));
+    instances += counts[i].instances;
+    bytes += counts[i].bytes;
+  }
+  fprintf (stderr, " %-4s %12ld %16ld\n", "Total", instances, bytes);
+  return;
+}
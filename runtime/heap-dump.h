@@ -0,0 +1,33 @@
+#ifndef HEAP_DUMP_H
+#define HEAP_DUMP_H
+
+// Heap inspection, on SIGUSR1 (see "Tiger_heap_inspect"): after a
+// full collection, every object in the heap is visited, a histogram
+// of the live objects per class is printed to stderr, and with
+// "@heapDump <file>", the object graph is written to "<file>.<n>",
+// to be read by "heapdump.HeapDump" offline.
+//
+// The dump is a sequence of records in the byte order of the
+// machine, each starting with its tag:
+//   'H' "TIGERHD" version(u32)  the header, first
+//   'C' id(u64) length(u32) name  a class, before its objects
+//   'O' address(u64) class(u64) size(u64) n(u32) n*address(u64)
+//                                 an object, the class 0 for an
+//                                 int array, and the non-null
+//                                 references it holds
+//   'R' address(u64)              a root
+//   'E'                           the end
+
+// Start an inspection.
+void HeapDump_begin ();
+
+// The object "p" of "size" bytes is in the heap.
+void HeapDump_object (int *p, long size);
+
+// The object "p" is referenced by a root.
+void HeapDump_root (void *p);
+
+// End the inspection.
+void HeapDump_end ();
+
+#endif
@@ -0,0 +1,371 @@
+#include <stdio.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+#include <fcntl.h>
+#include <unistd.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include "control.h"
+#include "gc.h"
+#include "heap-image.h"
+
+#define HEAP_IMAGE_VERSION 1
+
+struct ImageHeader {
+  char magic[8];                // "TIGERIM"
+  int version;
+  int refSize;                  // sizeof (tiger_ref)
+  long exeSize;                 // the executable the vtables are in
+  long exeTime;
+  long methodLen;
+  long argCnt;
+  long classCnt;
+  long dataOffset;              // of the objects, page aligned
+  long dataSize;
+  long root;                    // the offset of the result
+};
+
+// A reference in the image, from the offset of the object.
+#ifdef TIGER_COMPRESSED_REFS
+#define IMAGE_REF(off) ((tiger_ref)(((off) >> 3) + 1))
+#define IMAGE_OFF(r) (((long)(r) - 1) << 3)
+#else
+#define IMAGE_REF(off) ((tiger_ref)((off) + 1))
+#define IMAGE_OFF(r) ((long)(r) - 1)
+#endif
+
+// The vtables are found from here, as both are in the executable,
+// which is checked to be the same. The offsets are taken on integers,
+// as pointers may not point out of the object they come from.
+static char imageAnchor;
+
+// Only the first call of the method is saved or restored.
+static int imageDone = 0;
+
+static void HeapImage_exe (long *size, long *time)
+{
+  struct stat st;
+
+  *size = *time = -1;
+  if (0 == stat ("/proc/self/exe", &st)) {
+    *size = st.st_size;
+    *time = st.st_mtim.tv_sec * 1000000000L + st.st_mtim.tv_nsec;
+  }
+  return;
+}
+
+static long HeapImage_size (int *p)
+{
+  const struct Tiger_class *c = *(struct Tiger_class **)p;
+
+  if (NULL != c)
+    return c->size;
+  return TIGER_ARRAY_SIZE (TIGER_ARRAY_LENGTH (p));
+}
+
+// Apply "f" to the reference fields of the object "p" of the class "c".
+static void HeapImage_fields (int *p, const struct Tiger_class *c,
+                              void (*f)(tiger_ref *))
+{
+  long w, words;
+
+  if (NULL == c)
+    return;
+  words = (c->gc_map.slots + GC_MAP_WORD_BITS - 1) / GC_MAP_WORD_BITS;
+  for (w = 0; w < words; w++) {
+    unsigned long bits = c->gc_map.bits[w];
+    for (; bits; bits &= bits - 1)
+      f ((tiger_ref *)p + w * GC_MAP_WORD_BITS + __builtin_ctzl (bits));
+  }
+  return;
+}
+
+static void *HeapImage_grow (void *array, long *cap, long elemSize)
+{
+  *cap = *cap ? 2 * *cap : 1024;
+  array = realloc (array, *cap * elemSize);
+  if (NULL == array) {
+    printf ("OutOfMemoryError: cannot save the heap image.\n");
+    exit (1);
+  }
+  return array;
+}
+
+//////////////////////////////////////////////////////
+/*        saving */
+
+// The objects reachable from the result, in the order of the image,
+// with their offsets, and a hash table from their address.
+static int **saveObjs = NULL;
+static long *saveOffs = NULL;
+static long saveCnt = 0;
+static long saveCap = 0;
+static long saveSize = 0;
+
+static long *saveTable = NULL;  // indexes into "saveObjs" plus one
+static long saveTableCap = 0;
+
+static const struct Tiger_class **saveClasses = NULL;
+static long saveClassCnt = 0;
+static long saveClassCap = 0;
+
+static long *HeapImage_slot (void *p)
+{
+  unsigned long h = ((unsigned long)p >> 3) * 0x9e3779b97f4a7c15UL;
+  long i = (long)(h >> 20) & (saveTableCap - 1);
+
+  while (0 != saveTable[i] && saveObjs[saveTable[i] - 1] != p)
+    i = (i + 1) & (saveTableCap - 1);
+  return &saveTable[i];
+}
+
+// The index of "p" in "saveObjs", which is added if not there yet.
+static long HeapImage_add (int *p)
+{
+  long i, *slot;
+
+  if (2 * saveCnt >= saveTableCap) {
+    long cap = saveTableCap ? 2 * saveTableCap : 4096;
+    free (saveTable);
+    saveTable = (long *)calloc (cap, sizeof (long));
+    if (NULL == saveTable) {
+      printf ("OutOfMemoryError: cannot save the heap image.\n");
+      exit (1);
+    }
+    saveTableCap = cap;
+    for (i = 0; i < saveCnt; i++)
+      *HeapImage_slot (saveObjs[i]) = i + 1;
+  }
+  slot = HeapImage_slot (p);
+  if (0 != *slot)
+    return *slot - 1;
+  if (saveCnt == saveCap) {
+    long cap = saveCap;
+    saveObjs = (int **)HeapImage_grow (saveObjs, &saveCap, sizeof (int *));
+    saveOffs = (long *)HeapImage_grow (saveOffs, &cap, sizeof (long));
+  }
+  saveObjs[saveCnt] = p;
+  saveOffs[saveCnt] = saveSize;
+  saveSize += HeapImage_size (p);
+  *slot = ++saveCnt;
+  return saveCnt - 1;
+}
+
+// An incremental collection may be in progress, so the references
+// are read through the barrier.
+static void HeapImage_visit (tiger_ref *field)
+{
+  void *q = Tiger_read (field);
+  if (NULL != q)
+    HeapImage_add ((int *)q);
+  return;
+}
+
+static void HeapImage_encode (tiger_ref *field)
+{
+  void *q = Tiger_decode (*field);
+  if (NULL != q)
+    *field = IMAGE_REF (saveOffs[*HeapImage_slot (q) - 1]);
+  return;
+}
+
+static long HeapImage_class (const struct Tiger_class *c)
+{
+  long i;
+
+  for (i = 0; i < saveClassCnt; i++)
+    if (saveClasses[i] == c)
+      return i;
+  if (saveClassCnt == saveClassCap)
+    saveClasses = (const struct Tiger_class **)HeapImage_grow (saveClasses, &saveClassCap, sizeof (void *));
+  saveClasses[saveClassCnt] = c;
+  return saveClassCnt++;
+}
+
+static int HeapImage_write (FILE *f, const void *p, size_t n)
+{
+  return 0 == n || 1 == fwrite (p, n, 1, f);
+}
+
+void Tiger_image_save (const char *method, const long *args, int nargs, void *result)
+{
+  struct ImageHeader h;
+  char *data, tmp[4096];
+  long i, pageSize = sysconf (_SC_PAGESIZE);
+  FILE *f;
+  int ok;
+
+  if (NULL == Control_heapImage || imageDone || NULL == result)
+    return;
+  imageDone = 1;
+
+  // the objects in breadth-first order, as a copy would lay them out
+  saveCnt = saveClassCnt = saveSize = 0;
+  HeapImage_add ((int *)result);
+  for (i = 0; i < saveCnt; i++)
+    HeapImage_fields (saveObjs[i], *(struct Tiger_class **)saveObjs[i], HeapImage_visit);
+
+  data = (char *)malloc (saveSize);
+  if (NULL == data) {
+    printf ("OutOfMemoryError: cannot save the heap image.\n");
+    exit (1);
+  }
+  for (i = 0; i < saveCnt; i++) {
+    int *p = (int *)(data + saveOffs[i]);
+    const struct Tiger_class *c = *(struct Tiger_class **)saveObjs[i];
+    memcpy (p, saveObjs[i], HeapImage_size (saveObjs[i]));
+    HeapImage_fields (p, c, HeapImage_encode);
+    if (NULL != c)
+      *(long *)p = HeapImage_class (c) + 1;
+  }
+
+  memset (&h, 0, sizeof h);
+  memcpy (h.magic, "TIGERIM", 8);
+  h.version = HEAP_IMAGE_VERSION;
+  h.refSize = sizeof (tiger_ref);
+  HeapImage_exe (&h.exeSize, &h.exeTime);
+  h.methodLen = strlen (method);
+  h.argCnt = nargs;
+  h.classCnt = saveClassCnt;
+  h.dataSize = saveSize;
+  h.root = 0;
+  h.dataOffset = sizeof h + h.methodLen + nargs * sizeof (long);
+  for (i = 0; i < saveClassCnt; i++)
+    h.dataOffset += 2 * sizeof (long) + strlen (saveClasses[i]->name);
+  h.dataOffset = (h.dataOffset + pageSize - 1) & ~(pageSize - 1);
+
+  // written aside, so that a run never maps a partial image
+  snprintf (tmp, sizeof tmp, "%s.tmp", Control_heapImage);
+  f = fopen (tmp, "wb");
+  ok = NULL != f
+    && HeapImage_write (f, &h, sizeof h)
+    && HeapImage_write (f, method, h.methodLen)
+    && HeapImage_write (f, args, nargs * sizeof (long));
+  for (i = 0; ok && i < saveClassCnt; i++) {
+    long head[2] = {(long)((uintptr_t)saveClasses[i] - (uintptr_t)&imageAnchor),
+                    strlen (saveClasses[i]->name)};
+    ok = HeapImage_write (f, head, sizeof head)
+      && HeapImage_write (f, saveClasses[i]->name, head[1]);
+  }
+  ok = ok && 0 == fseek (f, h.dataOffset, SEEK_SET)
+    && HeapImage_write (f, data, saveSize);
+  if (NULL != f)
+    ok = 0 == fclose (f) && ok;
+  if (!ok || 0 != rename (tmp, Control_heapImage)) {
+    printf ("Error: cannot write the heap image: %s\n", Control_heapImage);
+    remove (tmp);
+  }
+  free (data);
+  free (saveObjs);
+  free (saveOffs);
+  free (saveTable);
+  saveObjs = NULL;
+  saveOffs = NULL;
+  saveTable = NULL;
+  saveCap = saveTableCap = 0;
+  return;
+}
+
+//////////////////////////////////////////////////////
+/*        restoring */
+
+static const char *imageMap = NULL;
+static const struct ImageHeader *imageHeader = NULL;
+static const struct Tiger_class **vtables = NULL;
+static char *imageBase = NULL;
+
+static void HeapImage_decode (tiger_ref *field)
+{
+  if (0 != *field)
+    *field = Tiger_encode (imageBase + IMAGE_OFF (*field));
+  return;
+}
+
+// Copy the objects to "base", and relocate them.
+static void HeapImage_fill (char *base)
+{
+  char *p;
+
+  imageBase = base;
+  memcpy (base, imageMap + imageHeader->dataOffset, imageHeader->dataSize);
+  for (p = base; p < base + imageHeader->dataSize; p += HeapImage_size ((int *)p)) {
+    long c = *(long *)p;
+    if (0 == c)
+      continue;
+    *(const struct Tiger_class **)p = vtables[c - 1];
+    HeapImage_fields ((int *)p, vtables[c - 1], HeapImage_decode);
+  }
+  return;
+}
+
+// Whether the image is of this executable, method and arguments, and
+// if so, look up its classes.
+static int HeapImage_check (long fileSize, const char *method,
+                            const long *args, int nargs)
+{
+  const struct ImageHeader *h = imageHeader;
+  const char *q = imageMap + sizeof *h;
+  long exeSize, exeTime, i;
+
+  HeapImage_exe (&exeSize, &exeTime);
+  if ((long)sizeof *h > fileSize || 0 != memcmp (h->magic, "TIGERIM", 8)
+      || HEAP_IMAGE_VERSION != h->version || sizeof (tiger_ref) != h->refSize
+      || exeSize != h->exeSize || exeTime != h->exeTime
+      || h->dataOffset + h->dataSize > fileSize
+      || h->methodLen < 0 || h->classCnt < 0
+      || (long)sizeof *h + h->methodLen + nargs * (long)sizeof (long) > h->dataOffset)
+    return 0;
+  if ((long)strlen (method) != h->methodLen || 0 != memcmp (q, method, h->methodLen))
+    return 0;
+  q += h->methodLen;
+  if (nargs != h->argCnt || 0 != memcmp (q, args, nargs * sizeof (long)))
+    return 0;
+  q += nargs * sizeof (long);
+
+  vtables = (const struct Tiger_class **)realloc (vtables, (h->classCnt + 1) * sizeof (void *));
+  for (i = 0; i < h->classCnt; i++) {
+    long head[2];
+    if (q + sizeof head > imageMap + h->dataOffset)
+      return 0;
+    memcpy (head, q, sizeof head);
+    q += sizeof head;
+    if (head[1] < 0 || q + head[1] > imageMap + h->dataOffset)
+      return 0;
+    vtables[i] = (const struct Tiger_class *)((uintptr_t)&imageAnchor + head[0]);
+    if ((long)strlen (vtables[i]->name) != head[1]
+        || 0 != memcmp (vtables[i]->name, q, head[1]))
+      return 0;
+    q += head[1];
+  }
+  return 1;
+}
+
+int Tiger_image_restore (const char *method, const long *args, int nargs, void **result)
+{
+  struct stat st;
+  int fd, ok = 0;
+
+  if (NULL == Control_heapImage || imageDone)
+    return 0;
+
+  fd = open (Control_heapImage, O_RDONLY);
+  if (fd < 0)
+    return 0;
+  if (0 == fstat (fd, &st) && st.st_size > 0) {
+    imageMap = (const char *)mmap (NULL, st.st_size, PROT_READ, MAP_PRIVATE, fd, 0);
+    if (MAP_FAILED != imageMap) {
+      imageHeader = (const struct ImageHeader *)imageMap;
+      if (HeapImage_check (st.st_size, method, args, nargs)
+          && NULL != Tiger_heap_place (imageHeader->dataSize, HeapImage_fill)) {
+        *result = imageBase + imageHeader->root;
+        ok = 1;
+      }
+      munmap ((void *)imageMap, st.st_size);
+    }
+  }
+  close (fd);
+  // otherwise, the image is written at the return of the method
+  imageDone = ok;
+  return ok;
+}
@@ -0,0 +1,25 @@
+#ifndef HEAP_IMAGE_H
+#define HEAP_IMAGE_H
+
+// Heap images, for a warm start of the programs which spend their
+// time building the same structure first. The method compiled with
+// "-heapImage Class.method" is such a builder: given "@heapImage
+// <file>", the structure it returns is saved to <file> at the first
+// return, and a later run of the same executable, which calls it with
+// the same arguments, maps the file and returns the copy at once
+// (see "Tiger_image_restore" and "Tiger_image_save" in "gc.h").
+//
+// The file starts with a "struct ImageHeader", followed by the method
+// name, the arguments, and the classes, each as the offset of its
+// vtable from the runtime and its name. The objects come at the next
+// page, in the layout of the heap, with the vptr replaced by the index
+// of the class plus one (arrays keep NULL), and the references by
+// their offset from the first object, as "tiger_ref" plus one, so
+// they are relocated in one pass over the objects.
+
+// Take "size" bytes at the free end of the "from" space, let "fill"
+// put the objects there, and return where, or NULL if there is no
+// room (in "gc.c").
+char *Tiger_heap_place (long size, void (*fill)(char *));
+
+#endif
@@ -1,13 +1,83 @@
 #include <stdio.h>
 #include <stdlib.h>
 #include <string.h>
+#include <unistd.h>
+#include <errno.h>
+#include "control.h"
+
+// The output of the Java program goes through this buffer, which
+// is written out by "write" when full, at exit, and at the end of
+// every line if "Control_flushLines" is set.
+#define OUT_BUF_SIZE (64 * 1024)
+
+static char outBuf[OUT_BUF_SIZE];
+static int outLen = 0;
+static int outInited = 0;
+
+static void Lib_flush() {
+  int done = 0;
+  while (done < outLen) {
+    ssize_t n = write(STDOUT_FILENO, outBuf + done, outLen - done);
+    if (n < 0) {
+      if (EINTR == errno)
+        continue;
+      break;
+    }
+    done += n;
+  }
+  outLen = 0;
+}
+
+static void Lib_init() {
+  outInited = 1;
+  // by default, flush every line only for a terminal, as stdio does
+  if (Control_flushLines < 0)
+    Control_flushLines = isatty(STDOUT_FILENO);
+  // anything printed by stdio comes after the buffer at exit
+  fflush(stdout);
+  atexit(Lib_flush);
+}
+
+static void Lib_write(const char *s, int len) {
+  if (!outInited)
+    Lib_init();
+  while (len > 0) {
+    int n = OUT_BUF_SIZE - outLen;
+    if (n > len)
+      n = len;
+    memcpy(outBuf + outLen, s, n);
+    outLen += n;
+    s += n;
+    len -= n;
+    if (OUT_BUF_SIZE == outLen)
+      Lib_flush();
+  }
+}
+
+static void Lib_endLine() {
+  Lib_write("\n", 1);
+  if (Control_flushLines)
+    Lib_flush();
+}
 
 int System_out_println_int(int i) {
-  printf("%d\n", i);
+  // the digits are written backwards from the end of "digits"
+  char digits[16];
+  char *p = digits + sizeof(digits);
+  unsigned int u = i < 0 ? -(unsigned int)i : (unsigned int)i;
+  do {
+    *--p = '0' + u % 10;
+    u /= 10;
+  } while (u);
+  if (i < 0)
+    *--p = '-';
+  Lib_write(p, digits + sizeof(digits) - p);
+  Lib_endLine();
   return 0;
 }
 
 int System_out_println_string(char* str) {
-  printf("%s\n", str);
+  Lib_write(str, strlen(str));
+  Lib_endLine();
   return 0;
-}
\ No newline at end of file
+}
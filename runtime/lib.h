@@ -0,0 +1,8 @@
+#ifndef LIB_H
+#define LIB_H
+
+// System.out.println, for an int or a string literal.
+int System_out_println_int (int i);
+int System_out_println_string (char *str);
+
+#endif
@@ -2,14 +2,21 @@
 #include <stdlib.h>
 #include <string.h>
 #include "control.h"
-
-extern void Tiger_heap_init (int);
+#include "command-line.h"
+#include "tiger.h"
 
 int main (int argc, char **argv) {
+  // runtime options come after "@tiger"
+  CommandLine_doarg (argc, argv);
+
+  if (Tiger_methodTrace)
+    Trace_init ();
+  if (Control_profile)
+    Profile_init ();
+
   // initialize the Java heap
   Tiger_heap_init (Control_heapSize);
 
   // enter Java code...
   Tiger_main ();
 }
-
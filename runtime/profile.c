@@ -0,0 +1,226 @@
+#define _GNU_SOURCE
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <errno.h>
+#include <signal.h>
+#include <execinfo.h>
+#include <ucontext.h>
+#include <sys/time.h>
+#include "control.h"
+#include "profile.h"
+
+// Defined by the programs, which all have a table.
+const struct Tiger_method_sym *Tiger_methodSyms __attribute__((weak)) = NULL;
+
+// The end of the last method (see "profile.h").
+extern char __stop_tiger_methods[] __attribute__((weak));
+
+#define PROFILE_DEPTH 64
+#define PROFILE_STACKS 4096
+#define PROFILE_RUNTIME (-1)
+
+// A distinct stack, innermost first, as indexes into "profileSyms",
+// or PROFILE_RUNTIME. "truncated" if the outermost frames are lost.
+struct ProfileStack {
+  long count;
+  int depth;
+  int truncated;
+  int frames[PROFILE_DEPTH];
+};
+
+// The methods, sorted by address.
+static struct Tiger_method_sym *profileSyms;
+static long profileSymCnt;
+
+// An open addressing table, taken at the start, as the handler must
+// not allocate. The samples of the stacks which find no room are lost.
+static struct ProfileStack *profileStacks;
+static long profileLost;
+
+static int Profile_compare (const void *a, const void *b)
+{
+  const char *x = ((const struct Tiger_method_sym *)a)->code;
+  const char *y = ((const struct Tiger_method_sym *)b)->code;
+  return x < y ? -1 : x > y;
+}
+
+// The method "pc" is in, or PROFILE_RUNTIME.
+static int Profile_lookup (char *pc)
+{
+  long lo = 0, hi = profileSymCnt;
+  char *end;
+
+  // the last method starting at or before "pc"
+  while (lo < hi) {
+    long mid = (lo + hi) / 2;
+    if ((char *)profileSyms[mid].code <= pc)
+      lo = mid + 1;
+    else hi = mid;
+  }
+  if (0 == lo)
+    return PROFILE_RUNTIME;
+  end = lo < profileSymCnt ? (char *)profileSyms[lo].code : __stop_tiger_methods;
+  return pc < end ? (int)(lo - 1) : PROFILE_RUNTIME;
+}
+
+// The interrupted instruction, where it is known.
+static void *Profile_pc (void *context)
+{
+  ucontext_t *uc = (ucontext_t *)context;
+#if defined(__x86_64__) && defined(REG_RIP)
+  return (void *)uc->uc_mcontext.gregs[REG_RIP];
+#elif defined(__aarch64__)
+  return (void *)uc->uc_mcontext.pc;
+#else
+  (void)uc;
+  return NULL;
+#endif
+}
+
+static void Profile_record (int *frames, int depth, int truncated)
+{
+  unsigned long h = 14695981039346656037UL;
+  long i, probe;
+
+  for (i = 0; i < depth; i++)
+    h = (h ^ (unsigned)frames[i]) * 1099511628211UL;
+  h ^= truncated;
+  for (probe = 0; probe < PROFILE_STACKS; probe++) {
+    struct ProfileStack *s = &profileStacks[(h + probe) & (PROFILE_STACKS - 1)];
+
+    if (0 == s->count) {
+      s->depth = depth;
+      s->truncated = truncated;
+      memcpy (s->frames, frames, depth * sizeof (int));
+    }
+    else if (s->depth != depth || s->truncated != truncated
+             || 0 != memcmp (s->frames, frames, depth * sizeof (int)))
+      continue;
+    s->count++;
+    return;
+  }
+  profileLost++;
+  return;
+}
+
+// The frames of the handler and of the signal trampoline come first,
+// then the interrupted instruction, then the return addresses, which
+// are looked up one byte before, as the call may be the last
+// instruction of a method. The frames out of the methods are left out,
+// but at the top.
+static void Profile_signal (int sig, siginfo_t *info, void *context)
+{
+  void *pcs[PROFILE_DEPTH + 8];
+  int frames[PROFILE_DEPTH];
+  int errnoSave = errno;
+  void *pc = Profile_pc (context);
+  int n, i, top = 2, depth = 0, truncated;
+
+  (void)sig;
+  (void)info;
+  n = backtrace (pcs, PROFILE_DEPTH + 8);
+  for (i = 0; i < n && NULL != pc; i++)
+    if (pcs[i] == pc) {
+      top = i;
+      break;
+    }
+  if (top >= n) {
+    errno = errnoSave;
+    return;
+  }
+  if (PROFILE_RUNTIME == Profile_lookup ((char *)pcs[top]))
+    frames[depth++] = PROFILE_RUNTIME;
+  truncated = (n == PROFILE_DEPTH + 8);
+  for (i = top; i < n; i++) {
+    int m = Profile_lookup ((char *)pcs[i] - (i > top));
+
+    if (PROFILE_RUNTIME == m)
+      continue;
+    if (depth == PROFILE_DEPTH) {
+      truncated = 1;
+      break;
+    }
+    frames[depth++] = m;
+  }
+  Profile_record (frames, depth, truncated);
+  errno = errnoSave;
+  return;
+}
+
+static void Profile_setTimer (long usec)
+{
+  struct itimerval t;
+
+  t.it_interval.tv_sec = usec / 1000000;
+  t.it_interval.tv_usec = usec % 1000000;
+  t.it_value = t.it_interval;
+  setitimer (ITIMER_PROF, &t, NULL);
+  return;
+}
+
+static void Profile_exit ();
+
+void Profile_init ()
+{
+  struct sigaction sa;
+  void *warm[1];
+  long usec;
+
+  for (profileSymCnt = 0; NULL != Tiger_methodSyms
+       && NULL != Tiger_methodSyms[profileSymCnt].name; profileSymCnt++)
+    ;
+  profileSyms = (struct Tiger_method_sym *)malloc ((profileSymCnt + 1) * sizeof (struct Tiger_method_sym));
+  profileStacks = (struct ProfileStack *)calloc (PROFILE_STACKS, sizeof (struct ProfileStack));
+  if (NULL == profileSyms || NULL == profileStacks) {
+    printf ("OutOfMemoryError: cannot allocate the profile.\n");
+    exit (1);
+  }
+  if (profileSymCnt > 0)
+    memcpy (profileSyms, Tiger_methodSyms, profileSymCnt * sizeof (struct Tiger_method_sym));
+  qsort (profileSyms, profileSymCnt, sizeof (struct Tiger_method_sym), Profile_compare);
+
+  // the first unwinding loads the unwinder, which the handler must not
+  backtrace (warm, 1);
+
+  memset (&sa, 0, sizeof (sa));
+  sa.sa_sigaction = Profile_signal;
+  sa.sa_flags = SA_RESTART | SA_SIGINFO;
+  sigemptyset (&sa.sa_mask);
+  sigaction (SIGPROF, &sa, NULL);
+  atexit (Profile_exit);
+  usec = 1000000L / Control_profileHz;
+  Profile_setTimer (usec > 0 ? usec : 1);
+  return;
+}
+
+static void Profile_exit ()
+{
+  long i;
+  int j;
+  FILE *f;
+
+  Profile_setTimer (0);
+  signal (SIGPROF, SIG_IGN);
+  f = fopen (Control_profile, "w");
+  if (NULL == f) {
+    printf ("Error: cannot open the profile: %s\n", Control_profile);
+    return;
+  }
+  for (i = 0; i < PROFILE_STACKS; i++) {
+    struct ProfileStack *s = &profileStacks[i];
+
+    if (0 == s->count)
+      continue;
+    if (s->truncated)
+      fprintf (f, "[truncated];");
+    for (j = s->depth - 1; j >= 0; j--)
+      fprintf (f, "%s%s", PROFILE_RUNTIME == s->frames[j] ? "[runtime]"
+               : profileSyms[s->frames[j]].name, j > 0 ? ";" : "");
+    fprintf (f, " %ld\n", s->count);
+  }
+  if (profileLost > 0)
+    fprintf (f, "[lost] %ld\n", profileLost);
+  fclose (f);
+  return;
+}
@@ -0,0 +1,32 @@
+#ifndef PROFILE_H
+#define PROFILE_H
+
+// The sampling profiler, for any program, given "@profile <file>".
+// On every SIGPROF, "@profileHz" times a second of CPU time, the
+// stack of the mutator is unwound, and each return address is mapped
+// to the method it is in, by the table of the methods the compiler
+// emits, "Tiger_methodSyms". The stacks are counted in a table taken
+// at the start, and written at exit to <file> as collapsed stacks
+// ("main;Class.method;... <count>", one per line), the input of
+// "flamegraph.pl". A sample out of the methods, in the runtime or the
+// C library, ends its stack with "[runtime]".
+//
+// The methods are put in a section of their own, "tiger_methods", so
+// that the last one ends where the linker says the section does.
+
+struct Tiger_method_sym {
+  const char *name;             // "Class.method", or "main"
+  void *code;
+};
+
+// Put before the definition of every method.
+#define TIGER_METHOD __attribute__((section("tiger_methods")))
+
+// The methods of the program, ending with a NULL name (emitted by
+// the compiler).
+extern const struct Tiger_method_sym *Tiger_methodSyms;
+
+// Start the sampling, and write the stacks out at exit.
+void Profile_init ();
+
+#endif
@@ -1,9 +0,0 @@
-#include "control.c"
-//#include "command-line.c"
-#include "main.c"
-#include "lib.c"
-#include "gc.c"
-
-#ifndef NULL
-#define NULL 0
-#endif
@@ -0,0 +1,17 @@
+#ifndef TIGER_H
+#define TIGER_H
+
+// The interface of the runtime to the generated code, which is
+// linked against the precompiled runtime library (see "Makefile").
+
+#include <stddef.h>
+#include "control.h"
+#include "gc.h"
+#include "lib.h"
+#include "trace.h"
+#include "profile.h"
+
+// The main method of the Java program, generated by the compiler.
+int Tiger_main ();
+
+#endif
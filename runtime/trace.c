@@ -0,0 +1,98 @@
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include "control.h"
+#include "trace.h"
+
+struct Tiger_trace_record *Tiger_traceBuf = NULL;
+unsigned long Tiger_traceMask = 0;
+unsigned long Tiger_traceNext = 0;
+
+// Defined as 1 by the programs with traced methods.
+int Tiger_methodTrace __attribute__((weak)) = 0;
+
+// The clock and the monotonic time at the start, to convert the ticks.
+static unsigned long startTicks;
+static long startTime;
+
+static long Trace_now ()
+{
+  struct timespec ts;
+  clock_gettime (CLOCK_MONOTONIC, &ts);
+  return ts.tv_sec * 1000000000L + ts.tv_nsec;
+}
+
+static void Trace_exit ();
+
+void Trace_init ()
+{
+  unsigned long size = 1;
+
+  while (size < (unsigned long)Control_traceEvents)
+    size <<= 1;
+  Tiger_traceBuf = (struct Tiger_trace_record *)malloc (size * sizeof (struct Tiger_trace_record));
+  if (NULL == Tiger_traceBuf) {
+    printf ("OutOfMemoryError: cannot allocate the trace buffer.\n");
+    exit (1);
+  }
+  Tiger_traceMask = size - 1;
+  startTime = Trace_now ();
+  startTicks = Tiger_trace_clock ();
+  atexit (Trace_exit);
+  return;
+}
+
+// Write the events left in the buffer, oldest first, with the time in
+// microseconds from the start. When the buffer has wrapped around,
+// the returns whose entry was overwritten get one at the start of what
+// is left, so that the viewers can match them.
+static void Trace_exit ()
+{
+  unsigned long ticks = Tiger_trace_clock () - startTicks;
+  long elapsed = Trace_now () - startTime;
+  double nsPerTick = ticks ? (double)elapsed / ticks : 1.0;
+  unsigned long first, i, size = Tiger_traceMask + 1;
+  unsigned long *open = NULL;
+  long depth = 0, openCnt = 0;
+  FILE *f;
+
+  first = Tiger_traceNext > size ? Tiger_traceNext - size : 0;
+  f = fopen (Control_traceFile, "w");
+  if (NULL == f) {
+    printf ("Error: cannot open the trace file: %s\n", Control_traceFile);
+    return;
+  }
+  fprintf (f, "{\"displayTimeUnit\": \"ns\", \"traceEvents\": [\n");
+  fprintf (f, "{\"name\": \"process_name\", \"ph\": \"M\", \"pid\": 1, \"tid\": 1,"
+           " \"args\": {\"name\": \"tiger\"}}");
+
+  // the returns taking the depth to a new low, innermost first
+  for (i = first; i < Tiger_traceNext; i++) {
+    depth += 'B' == Tiger_traceBuf[i & Tiger_traceMask].phase ? 1 : -1;
+    if (depth < -openCnt) {
+      open = (unsigned long *)realloc (open, (openCnt + 1) * sizeof (unsigned long));
+      if (NULL == open) {
+        printf ("OutOfMemoryError: cannot write the trace.\n");
+        exit (1);
+      }
+      open[openCnt++] = i;
+    }
+  }
+  while (openCnt-- > 0) {
+    struct Tiger_trace_record *r = &Tiger_traceBuf[open[openCnt] & Tiger_traceMask];
+    fprintf (f, ",\n{\"name\": \"%s\", \"ph\": \"B\", \"ts\": %.3f, \"pid\": 1, \"tid\": 1}",
+             r->name, (Tiger_traceBuf[first & Tiger_traceMask].time - startTicks) * nsPerTick / 1000.0);
+  }
+  free (open);
+
+  for (i = first; i < Tiger_traceNext; i++) {
+    struct Tiger_trace_record *r = &Tiger_traceBuf[i & Tiger_traceMask];
+    fprintf (f, ",\n{\"name\": \"%s\", \"ph\": \"%c\", \"ts\": %.3f, \"pid\": 1, \"tid\": 1}",
+             r->name, (int)r->phase, (r->time - startTicks) * nsPerTick / 1000.0);
+  }
+  fprintf (f, "\n],\n\"otherData\": {\"events\": %lu, \"dropped\": %lu}}\n",
+           Tiger_traceNext, first);
+  fclose (f);
+  return;
+}
@@ -0,0 +1,51 @@
+#ifndef TRACE_H
+#define TRACE_H
+
+// Method tracing, for the programs compiled with "-trace Class.method".
+// The traced methods record an event at their entry and at every
+// return, inline, into a ring buffer, which is written at exit in the
+// trace event format of Chrome (for "chrome://tracing" or Perfetto)
+// to "@traceFile <file>". Only the last "@traceEvents <n>" events are
+// kept, so a long run takes a fixed memory. The collections are
+// recorded as well, as "GC".
+// The mutator is the only thread recording, so no lock is needed.
+
+struct Tiger_trace_record {
+  unsigned long time;           // in ticks of "Tiger_trace_clock"
+  const char *name;             // "Class.method"
+  long phase;                   // 'B' at the entry, 'E' at the return
+};
+
+extern struct Tiger_trace_record *Tiger_traceBuf;
+extern unsigned long Tiger_traceMask;
+extern unsigned long Tiger_traceNext;
+
+// Defined as 1 by the programs with traced methods.
+extern int Tiger_methodTrace;
+
+// The time stamp counter, where there is one, whose ticks are
+// converted to nanoseconds at exit, or the monotonic clock.
+#if defined(__x86_64__) || defined(__i386__)
+static inline unsigned long Tiger_trace_clock (void) {
+  return __builtin_ia32_rdtsc();
+}
+#else
+#include <time.h>
+static inline unsigned long Tiger_trace_clock (void) {
+  struct timespec ts;
+  clock_gettime(CLOCK_MONOTONIC, &ts);
+  return ts.tv_sec * 1000000000UL + ts.tv_nsec;
+}
+#endif
+
+static inline void Tiger_trace_event (const char *name, long phase) {
+  struct Tiger_trace_record *r = &Tiger_traceBuf[Tiger_traceNext++ & Tiger_traceMask];
+  r->time = Tiger_trace_clock();
+  r->name = name;
+  r->phase = phase;
+}
+
+// Allocate the buffer, and write it out at exit.
+void Trace_init ();
+
+#endif
@@ -41,7 +41,7 @@ public class Tiger {
       System.out.println("Testing the Tiger compiler on Fac.java starting:");
       ast.PrettyPrintVisitor pp = new ast.PrettyPrintVisitor();
       control.CompilerPass ppPass = new control.CompilerPass(
-          "Pretty printing AST", ast.Fac.prog, pp);
+          "Pretty printing AST", () -> ast.Fac.prog.accept(pp));
       // ppPass.exec();
 
       // elaborate the given program, this step is necessary
@@ -49,13 +49,13 @@ public class Tiger {
       // informations used by later phase.
       elaborator.ElaboratorVisitor elab = new elaborator.ElaboratorVisitor();
       control.CompilerPass elabPass = new control.CompilerPass(
-          "Elaborating the AST", ast.Fac.prog, elab);
+          "Elaborating the AST", () -> ast.Fac.prog.accept(elab));
       elabPass.exec();
 
       // optimize the AST
       ast.optimizations.Main optAstPasses = new ast.optimizations.Main();
       control.CompilerPass optAstPass = new control.CompilerPass(
-          "Optimizing AST", optAstPasses, ast.Fac.prog);
+          "Optimizing AST", () -> optAstPasses.accept(ast.Fac.prog));
       optAstPass.exec();
       ast.Fac.prog = optAstPasses.program;
 
@@ -64,34 +64,34 @@ public class Tiger {
       case Bytecode:
         codegen.bytecode.TranslateVisitor trans = new codegen.bytecode.TranslateVisitor();
         control.CompilerPass genBytecodePass = new control.CompilerPass(
-            "Bytecode generation", ast.Fac.prog, trans);
+            "Bytecode generation", () -> ast.Fac.prog.accept(trans));
         genBytecodePass.exec();
         codegen.bytecode.Ast.Program.T bytecodeAst = trans.program;
 
         codegen.bytecode.PrettyPrintVisitor ppbc = new codegen.bytecode.PrettyPrintVisitor();
         control.CompilerPass ppBytecodePass = new control.CompilerPass(
-            "Bytecode printing", bytecodeAst, ppbc);
+            "Bytecode printing", () -> bytecodeAst.accept(ppbc));
         ppBytecodePass.exec();
         break;
       case C:
         // Compile this program to C.
         codegen.C.TranslateVisitor transC = new codegen.C.TranslateVisitor();
         control.CompilerPass genCCodePass = new control.CompilerPass(
-                "Translation to C code", ast.Fac.prog, transC);
+                "Translation to C code", () -> ast.Fac.prog.accept(transC));
         genCCodePass.exec();
         codegen.C.Ast.Program.T cAst = transC.program;
 
         if (control.Control.ConAst.dumpC) {
           codegen.C.PrettyPrintVisitor ppC = new codegen.C.PrettyPrintVisitor();
           control.CompilerPass ppCCodePass = new control.CompilerPass(
-                  "C code printing", cAst, ppC);
+                  "C code printing", () -> cAst.accept(ppC));
           ppCCodePass.exec();
         }
 
         // translation to control-flow graph
         cfg.TranslateVisitor transCfg = new cfg.TranslateVisitor();
         control.CompilerPass genCfgCodePass = new control.CompilerPass(
-                "Control-flow graph generation", cAst, transCfg);
+                "Control-flow graph generation", () -> cAst.accept(transCfg));
         genCfgCodePass.exec();
         cfg.Cfg.Program.T cfgAst = transCfg.program;
 
@@ -99,32 +99,31 @@ public class Tiger {
         if (control.Control.visualize != Control.Visualize_Kind_t.None) {
           cfg.VisualVisitor toDot = new cfg.VisualVisitor();
           control.CompilerPass genDotPass = new control.CompilerPass(
-                  "Draw control-flow graph", cfgAst, toDot);
+                  "Draw control-flow graph", () -> cfgAst.accept(toDot));
           genDotPass.exec();
         }
 
         // optimizations on the control-flow graph
         cfg.optimizations.Main cfgOpts = new cfg.optimizations.Main();
         control.CompilerPass cfgOptPass = new control.CompilerPass(
-                "Control-flow graph optimizations", cfgOpts, cfgAst);
+                "Control-flow graph optimizations", () -> cfgOpts.accept(cfgAst));
         cfgOptPass.exec();
-        cfgAst = cfgOpts.program;
 
         cfg.PrettyPrintVisitor ppCfg = new cfg.PrettyPrintVisitor(cfgOpts.livenessIn);
         control.CompilerPass ppCfgCodePass = new control.CompilerPass(
-            "C code printing", cfgAst, ppCfg);
+            "C code printing", () -> cfgOpts.program.accept(ppCfg));
         ppCfgCodePass.exec();
         break;
       case Dalvik:
         codegen.dalvik.TranslateVisitor transDalvik = new codegen.dalvik.TranslateVisitor();
         control.CompilerPass genDalvikCodePass = new control.CompilerPass(
-            "Dalvik code generation", ast.Fac.prog, transDalvik);
+            "Dalvik code generation", () -> ast.Fac.prog.accept(transDalvik));
         genDalvikCodePass.exec();
         codegen.dalvik.Ast.Program.T dalvikAst = transDalvik.program;
 
         codegen.dalvik.PrettyPrintVisitor ppDalvik = new codegen.dalvik.PrettyPrintVisitor();
         control.CompilerPass ppDalvikCodePass = new control.CompilerPass(
-            "Dalvik code printing", dalvikAst, ppDalvik);
+            "Dalvik code printing", () -> dalvikAst.accept(ppDalvik));
         ppDalvikCodePass.exec();
         break;
       case X86:
@@ -167,28 +166,29 @@ public class Tiger {
     // normal compilation phases.
 
     control.CompilerPass lexAndParsePass = new control.CompilerPass(
-        "Lex and parse", tiger, fname);
-    lexAndParsePass.doitName("lexAndParse");
+        "Lex and parse", () -> null, () -> theAst, () -> tiger.lexAndParse(fname));
+    lexAndParsePass.exec();
 
     // pretty printing the AST, if necessary
     if (dumpAst) {
       ast.PrettyPrintVisitor pp = new ast.PrettyPrintVisitor();
       control.CompilerPass ppAstPass = new control.CompilerPass(
-          "Pretty printing the AST", theAst, pp);
+          "Pretty printing the AST", () -> theAst.accept(pp));
       ppAstPass.exec();
     }
 
     // elaborate the AST, report all possible errors.
     elaborator.ElaboratorVisitor elab = new elaborator.ElaboratorVisitor();
     control.CompilerPass elabAstPass = new control.CompilerPass(
-        "Elaborating the AST", theAst, elab);
+        "Elaborating the AST", () -> theAst, () -> theAst, () -> theAst.accept(elab));
     elabAstPass.exec();
 
     // optimize the AST
     ast.optimizations.Main optAstPasses = new ast.optimizations.Main();
     control.CompilerPass optAstPass = new control.CompilerPass(
-        "Optimizing the AST", optAstPasses, theAst);
-    optAstPass.doitName("accept");
+        "Optimizing the AST", () -> theAst, () -> optAstPasses.program,
+        () -> optAstPasses.accept(theAst));
+    optAstPass.exec();
     theAst = optAstPasses.program;
 
     // code generation
@@ -196,32 +196,34 @@ public class Tiger {
     case Bytecode:
       codegen.bytecode.TranslateVisitor trans = new codegen.bytecode.TranslateVisitor();
       control.CompilerPass genBytecodePass = new control.CompilerPass(
-          "Bytecode generation", theAst, trans);
+          "Bytecode generation", () -> theAst.accept(trans));
       genBytecodePass.exec();
       codegen.bytecode.Ast.Program.T bytecodeAst = trans.program;
       codegen.bytecode.PrettyPrintVisitor ppbc = new codegen.bytecode.PrettyPrintVisitor();
       control.CompilerPass ppBytecodePass = new control.CompilerPass(
-          "Bytecode printing", bytecodeAst, ppbc);
+          "Bytecode printing", () -> bytecodeAst.accept(ppbc));
       ppBytecodePass.exec();
       break;
     case C:
       codegen.C.TranslateVisitor transC = new codegen.C.TranslateVisitor();
       control.CompilerPass genCCodePass = new control.CompilerPass(
-          "C code generation", theAst, transC);
+          "C code generation", () -> theAst, () -> transC.program,
+          () -> theAst.accept(transC));
       genCCodePass.exec();
       codegen.C.Ast.Program.T cAst = transC.program;
 
       if (control.Control.ConAst.dumpC) {
         codegen.C.PrettyPrintVisitor ppC = new codegen.C.PrettyPrintVisitor();
         control.CompilerPass ppCCodePass = new control.CompilerPass(
-                "C code printing", cAst, ppC);
+                "C code printing", () -> cAst.accept(ppC));
         ppCCodePass.exec();
       }
 
       // translation to control-flow graph
       cfg.TranslateVisitor transCfg = new cfg.TranslateVisitor();
       control.CompilerPass genCfgCodePass = new control.CompilerPass(
-              "Control-flow graph generation", cAst, transCfg);
+              "Control-flow graph generation", () -> cAst, () -> transCfg.program,
+              () -> cAst.accept(transCfg));
       genCfgCodePass.exec();
       cfg.Cfg.Program.T cfgAst = transCfg.program;
 
@@ -229,32 +231,33 @@ public class Tiger {
       if (control.Control.visualize != Control.Visualize_Kind_t.None) {
         cfg.VisualVisitor toDot = new cfg.VisualVisitor();
         control.CompilerPass genDotPass = new control.CompilerPass(
-                "Draw control-flow graph", cfgAst, toDot);
+                "Draw control-flow graph", () -> cfgAst.accept(toDot));
         genDotPass.exec();
       }
 
       // optimizations on the control-flow graph
       cfg.optimizations.Main cfgOpts = new cfg.optimizations.Main();
       control.CompilerPass cfgOptPass = new control.CompilerPass(
-              "Control-flow graph optimizations", cfgOpts, cfgAst);
+              "Control-flow graph optimizations", () -> cfgAst, () -> cfgOpts.program,
+              () -> cfgOpts.accept(cfgAst));
       cfgOptPass.exec();
-      cfgAst = cfgOpts.program;
 
       cfg.PrettyPrintVisitor ppCfg = new cfg.PrettyPrintVisitor(cfgOpts.livenessIn);
       control.CompilerPass ppCfgCodePass = new control.CompilerPass(
-              "C code printing", cfgAst, ppCfg);
+              "C code printing", () -> cfgOpts.program, () -> cfgOpts.program,
+              () -> cfgOpts.program.accept(ppCfg));
       ppCfgCodePass.exec();
       break;
     case Dalvik:
       codegen.dalvik.TranslateVisitor transDalvik = new codegen.dalvik.TranslateVisitor();
       control.CompilerPass genDalvikCodePass = new control.CompilerPass(
-          "Dalvik code generation", theAst, transDalvik);
+          "Dalvik code generation", () -> theAst.accept(transDalvik));
       genDalvikCodePass.exec();
       codegen.dalvik.Ast.Program.T dalvikAst = transDalvik.program;
 
       codegen.dalvik.PrettyPrintVisitor ppDalvik = new codegen.dalvik.PrettyPrintVisitor();
       control.CompilerPass ppDalvikCodePass = new control.CompilerPass(
-          "Dalvik code printing", dalvikAst, ppDalvik);
+          "Dalvik code printing", () -> dalvikAst.accept(ppDalvik));
       ppDalvikCodePass.exec();
       break;
     case X86:
@@ -271,13 +274,22 @@ public class Tiger {
     switch (control.Control.ConCodeGen.codegen) {
       case C:
         String outName = str.substring(str.lastIndexOf('/') + 1, str.lastIndexOf(".java"));
+        // the runtime library is built once for every optimization level
+        int opt = control.Control.ConCodeGen.optLevel;
+        boolean lto = control.Control.ConCodeGen.lto;
+        boolean crefs = control.Control.ConCodeGen.compressedRefs;
+        String make = "make -s -C runtime OPT=" + opt + " LTO=" + (lto ? 1 : 0)
+            + " CREFS=" + (crefs ? 1 : 0);
+        String lib = "runtime/build/O" + opt + (lto ? "-lto" : "") + (crefs ? "-cr" : "")
+            + "/libtiger.a";
+        String gcc = "gcc -O" + opt + (lto ? " -flto" : "") + " " + str + ".c -I runtime "
+            + lib + " -pthread -o " + outName;
         try {
-          Process proc = Runtime.getRuntime().exec("gcc " + str + ".c -I runtime -o " + outName);
-          int exitVal = proc.waitFor();
-          if (0 == exitVal) System.out.println("Link succeed.");
+          if (0 != execInheritIO(make)) throw new RuntimeException("Cannot build the runtime.");
+          if (0 == execInheritIO(gcc)) System.out.println("Link succeed.");
           else throw new RuntimeException("ExitVal is not zero.");
         } catch (Exception e) {
-          System.out.println("Link failed.\nPlease try `gcc " + str + ".c -I runtime -o " + outName + "` yourself.");
+          System.out.println("Link failed.\nPlease try `" + make + " && " + gcc + "` yourself.");
           e.printStackTrace();
         }
         break;
@@ -294,16 +306,22 @@ public class Tiger {
     }
   }
 
+  // Run a command, with its output going to ours, so that
+  // it never blocks on a full pipe.
+  private static int execInheritIO(String cmd) throws Exception {
+    return new ProcessBuilder(cmd.split(" ")).inheritIO().start().waitFor();
+  }
+
   public void compileAndLink(String fname) {
     // compile
     control.CompilerPass compilePass = new control.CompilerPass("Compile",
-        tiger, fname);
-    compilePass.doitName("compile");
+        () -> tiger.compile(fname));
+    compilePass.exec();
 
     // linking
-    control.CompilerPass linkPass = new control.CompilerPass("Linking", tiger,
-        fname);
-    linkPass.doitName("link");
+    control.CompilerPass linkPass = new control.CompilerPass("Linking",
+        () -> tiger.link(fname));
+    linkPass.exec();
   }
 
   public static void main(String[] args) {
@@ -314,8 +332,9 @@ public class Tiger {
     String fname;
     fname = cmd.scan(args);
 
-    control.CompilerPass tigerAll = new control.CompilerPass("Tiger", tiger,
-        fname);
-    tigerAll.doitName("compileAndLink");
+    control.CompilerPass tigerAll = new control.CompilerPass("Tiger",
+        () -> tiger.compileAndLink(fname));
+    tigerAll.exec();
+    control.Metrics.write();
   }
 }
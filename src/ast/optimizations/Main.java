@@ -4,38 +4,42 @@ public class Main {
   public ast.Ast.Program.T program;
   
   public void accept(ast.Ast.Program.T ast) {
+    program = ast;
+
     DeadClass dceVisitor = new DeadClass();
     control.CompilerPass deadClassPass = new control.CompilerPass(
-        "Dead class elimination", ast, dceVisitor);
+        "Dead class elimination", () -> program, () -> dceVisitor.program,
+        () -> program.accept(dceVisitor));
     if (!control.Control.skipPass("ast.DeadClass")) {
       deadClassPass.exec();
-      ast = dceVisitor.program;
+      program = dceVisitor.program;
     }
 
     AlgSimp algVisitor = new AlgSimp();
     control.CompilerPass algPass = new control.CompilerPass(
-            "Algebraic simplification", ast, algVisitor);
+            "Algebraic simplification", () -> program, () -> algVisitor.program,
+        () -> program.accept(algVisitor));
     if (!control.Control.skipPass("ast.AlgSimp")) {
       algPass.exec();
-      ast = algVisitor.program;
+      program = algVisitor.program;
     }
 
     ConstFold cfVisitor = new ConstFold();
     control.CompilerPass constFoldPass = new control.CompilerPass(
-            "Const folding", ast, cfVisitor);
+            "Const folding", () -> program, () -> cfVisitor.program,
+        () -> program.accept(cfVisitor));
     if (!control.Control.skipPass("ast.ConstFold")) {
       constFoldPass.exec();
-      ast = cfVisitor.program;
+      program = cfVisitor.program;
     }
 
     DeadCode dcodeVisitor = new DeadCode();
     control.CompilerPass deadCodePass = new control.CompilerPass(
-        "Dead code elimination", ast, dcodeVisitor);
+        "Dead code elimination", () -> program, () -> dcodeVisitor.program,
+        () -> program.accept(dcodeVisitor));
     if (!control.Control.skipPass("ast.DeadCode")){
       deadCodePass.exec();
-      ast = dcodeVisitor.program;
+      program = dcodeVisitor.program;
     }
-
-    program = ast;
   }
 }
@@ -737,10 +737,10 @@ public class Cfg {
 
     public static class VtableSingle extends T {
       public String id; // name of the class
-      public String gcMap; // class gc map
+      public java.util.BitSet gcMap; // class gc map, one bit per word slot
       public LinkedList<cfg.Ftuple> ms; // all methods
 
-      public VtableSingle(String id, String gcMap, LinkedList<cfg.Ftuple> ms) {
+      public VtableSingle(String id, java.util.BitSet gcMap, LinkedList<cfg.Ftuple> ms) {
         this.id = id;
         this.gcMap = gcMap;
         this.ms = ms;
@@ -21,22 +21,68 @@ import cfg.Cfg.Type.IntType;
 import cfg.Cfg.Vtable.VtableSingle;
 import control.Control;
 
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
-import java.util.Set;
+import java.util.LinkedList;
 import java.util.stream.Collectors;
 
 public class PrettyPrintVisitor implements Visitor {
   private java.io.BufferedWriter writer;
   private HashMap<T, HashSet<String>> livenessStmIn;
-  private LinkedHashSet<DecSingle> curMethodFormals;
-  private LinkedHashSet<DecSingle> curMethodLocalRefs;
+  // reference formals and locals of the current method, in the
+  // order of the slots of its GC frame
+  private LinkedHashSet<DecSingle> curMethodSlots;
+  // safe points (calls and allocations) of the current method,
+  // each with a GC frame descriptor
+  private HashMap<Stm.T, Integer> curMethodSites;
+  // reference fields of every class with their types, used by the
+  // write barrier and the compressed references
+  private HashMap<String, HashMap<String, Type.T>> classRefFields;
+  private String curClassId;
+  // "Class.method" of the current method, and the number of its
+  // allocation sites so far, for the allocation profiler
+  private String curMethodName;
+  private int curMethodAllocSites;
+  // the int formals of the current method, if it is the builder of
+  // the heap image ("-heapImage"), or null
+  private LinkedList<String> curMethodImageArgs;
+  // whether the current method records its entry and returns ("-trace")
+  private boolean curMethodTraced;
 
   public PrettyPrintVisitor(HashMap<T, HashSet<String>> livenessStmIn) {
     this.livenessStmIn = livenessStmIn;
-    curMethodFormals = new LinkedHashSet<>();
-    curMethodLocalRefs = new LinkedHashSet<>();
+    curMethodSlots = new LinkedHashSet<>();
+    curMethodSites = new HashMap<>();
+    classRefFields = new HashMap<>();
+    curClassId = null;
+  }
+
+  private boolean isRefType(Type.T t) {
+    return t instanceof ClassType || t instanceof IntArrayType;
+  }
+
+  // The type of "id" if it is a reference field "this->f" of the
+  // current class, or null.
+  private Type.T refFieldType(String id) {
+    if (this.curClassId == null || !id.startsWith("this->"))
+      return null;
+    return this.classRefFields.get(this.curClassId).get(id.substring("this->".length()));
+  }
+
+  // Read "id", through the read barrier, or decoding it if it is a
+  // compressed reference field.
+  private String load(String id) {
+    Type.T t = refFieldType(id);
+    if (t == null)
+      return id;
+    String type = t instanceof ClassType ? "struct " + ((ClassType) t).id + " *" : "int *";
+    if (Control.ConCodeGen.readBarrier)
+      return "((" + type + ")Tiger_read((tiger_ref*)&" + id + "))";
+    if (Control.ConCodeGen.compressedRefs)
+      return "((" + type + ")Tiger_decode(" + id + "))";
+    return id;
   }
 
   private void printSpaces() {
@@ -79,7 +125,7 @@ public class PrettyPrintVisitor implements Visitor {
 
   @Override
   public void visit(Var operand) {
-    this.say(operand.id);
+    this.say(load(operand.id));
   }
 
   // statements
@@ -95,7 +141,11 @@ public class PrettyPrintVisitor implements Visitor {
 
   @Override
   public void visit(NewIntArray m) {
-    this.isayln(m.dst + " = Tiger_new_array(" + m.length + ");");
+    String size = "TIGER_ARRAY_SIZE(" + m.length + ")";
+    // large arrays go to the large object space in the runtime
+    this.sayAlloc(m, m.dst, "int*", m.length + " > 0 && " + size + " < Control_losThreshold && ", size,
+        "Tiger_new_array", m.length.toString(),
+        "TIGER_ARRAY_LENGTH(" + m.dst + ") = " + m.length + ";");
   }
 
   @Override
@@ -113,7 +163,7 @@ public class PrettyPrintVisitor implements Visitor {
     this.printSpaces();
     this.say(s.dst + " = ");
     s.array.accept(this);
-    this.say("[");
+    this.say("[TIGER_ARRAY_BASE + ");
     s.index.accept(this);
     this.say("];");
   }
@@ -121,46 +171,23 @@ public class PrettyPrintVisitor implements Visitor {
   @Override
   public void visit(Length s) {
     this.printSpaces();
-    this.say(s.dst + " = ");
+    this.say(s.dst + " = TIGER_ARRAY_LENGTH(");
     s.array.accept(this);
-    this.say(".length;");
+    this.say(");");
   }
 
   @Override
   public void visit(InvokeVirtual s) {
-    // print frame info of safe points
-    HashSet<String> aliveVarSet = livenessStmIn.get(s);
-    String argGcMap = this.curMethodFormals.stream().map(e -> {
-      if (aliveVarSet.contains(e.id) && (e.type instanceof ClassType || e.type instanceof IntArrayType)) return "1";
-      else return "0";
-    }).reduce("", String::concat);
-    Set<DecSingle> aliveLocalRefs = this.curMethodLocalRefs.stream()
-            .filter(e -> aliveVarSet.contains(e.id)).collect(Collectors.toSet());
-
-    this.isayln(String.format("int *frame = (int*)malloc(sizeof(int*) * (4 + %s));", aliveLocalRefs.size()));
-    this.isayln("fprev = prev; prev = frame;");
-    this.isayln("*(void**)frame = fprev; // prev");
-    this.isayln("++frame; *(char**)frame = \"" + argGcMap + "\"; // arguments_gc_map");
-    this.isayln("++frame; *(int**)frame = " + (this.curMethodFormals.isEmpty() ? "NULL" : "&this") + "; // arguments_base_addr");
-    this.isayln("++frame; *frame = " + aliveLocalRefs.size() + "; // local_refs_cnt");
-    aliveLocalRefs.forEach(ref -> {
-      this.isayln("++frame; *(void**)frame = &" + ref.id + ";");
-    });
-    this.sayln("");
-
-    // print normal info
+    this.saySite(s);
     this.printSpaces();
-    this.say(s.dst + " = " + s.obj);
-    this.say("->vptr->" + s.f + "("+s.obj);
+    String obj = load(s.obj);
+    this.say(s.dst + " = " + obj);
+    this.say("->vptr->" + s.f + "(" + obj);
     for (Operand.T x : s.args) {
       this.say(", ");
       x.accept(this);
     }
-    this.sayln(");\n");
-
-    // pop up the frame
-    this.isayln("free(prev);");
-    this.isayln("prev = fprev;");
+    this.sayln(");");
   }
 
   @Override
@@ -216,7 +243,7 @@ public class PrettyPrintVisitor implements Visitor {
   @Override
   public void visit(AssignArray s) {
     this.printSpaces();
-    this.say(s.dst + "[3 + ");
+    this.say(load(s.dst) + "[TIGER_ARRAY_BASE + ");
     s.index.accept(this);
     this.say("] = ");
     s.exp.accept(this);
@@ -225,17 +252,54 @@ public class PrettyPrintVisitor implements Visitor {
 
   @Override
   public void visit(Move s) {
+    boolean refField = refFieldType(s.dst) != null;
+    boolean encode = refField && Control.ConCodeGen.compressedRefs;
     this.printSpaces();
-    this.say(s.dst + " = ");
+    this.say(s.dst + (encode ? " = Tiger_encode(" : " = "));
     s.src.accept(this);
-    this.say(";");
+    this.say(encode ? ");" : ";");
+    // a reference stored into a field of "this" may create an
+    // old-to-young pointer, so dirty the card of "this".
+    if (refField)
+      this.say(" TIGER_WRITE_BARRIER(this);");
   }
 
   @Override
   public void visit(NewObject s) {
+    String type = "struct " + s.c + "*";
+    String size = "sizeof(struct " + s.c + ")";
+    this.sayAlloc(s, s.dst, type, "", size,
+        "Tiger_new", "&" + s.c + "_vtable_",
+        s.dst + "->vptr = &" + s.c + "_vtable_;");
+  }
+
+  // Inline the bump-pointer allocation of "size" bytes from the
+  // allocation buffer of the runtime (see "gc.h"), which is cleared
+  // already, so only the header is initialized. Only if the buffer is
+  // exhausted, the runtime is called, which may collect. The room left
+  // is compared signed, so that a limit below the next byte counts as
+  // none. With the allocation profiler, the runtime is told the site
+  // as well.
+  private void sayAlloc(Stm.T s, String dst, String type, String guard, String size,
+      String slowFun, String slowArg, String... header) {
+    this.isayln("if (" + guard + "Tiger_allocLimit - Tiger_allocNext >= (long)" + size + ") {");
+    this.isayln("  " + dst + " = (" + type + ")Tiger_allocNext;");
+    this.isayln("  Tiger_allocNext += " + size + ";");
+    for (String h : header)
+      this.isayln("  " + h);
+    this.isayln("} else {");
+    if (!this.curMethodSlots.isEmpty())
+      this.isayln("  gc_frame.desc = &gc_site_" + this.curMethodSites.get(s) + ";");
+    if (Control.ConCodeGen.allocProfile) {
+      int site = this.curMethodAllocSites++;
+      this.isayln("  static struct Tiger_alloc_site alloc_site_" + site + " = {.method = \""
+          + this.curMethodName + "\", .index = " + site + "};");
+      this.isayln("  " + dst + " = (" + type + ")" + slowFun + "_at(" + slowArg
+          + ", &alloc_site_" + site + ");");
+    } else
+      this.isayln("  " + dst + " = (" + type + ")" + slowFun + "(" + slowArg + ");");
     this.printSpaces();
-    this.say(s.dst +" = ((struct " + s.c + "*)(Tiger_new (&" + s.c
-        + "_vtable_, sizeof(struct " + s.c + "))));");
+    this.say("}");
   }
 
   @Override
@@ -290,6 +354,17 @@ public class PrettyPrintVisitor implements Visitor {
 
   @Override
   public void visit(Return s) {
+    if (this.curMethodImageArgs != null) {
+      this.printSpaces();
+      this.say("Tiger_image_save(\"" + this.curMethodName + "\", image_args, "
+          + this.curMethodImageArgs.size() + ", ");
+      s.operand.accept(this);
+      this.sayln(");");
+    }
+    if (this.curMethodTraced)
+      this.isayln("Tiger_trace_event(\"" + this.curMethodName + "\", 'E');");
+    if (!this.curMethodSlots.isEmpty())
+      this.isayln("prev = gc_frame.prev;");
     this.printSpaces();
     this.say("return ");
     s.operand.accept(this);
@@ -330,15 +405,155 @@ public class PrettyPrintVisitor implements Visitor {
     b.transfer.accept(this);
   }
 
+  // GC maps
+  // Print the words of the bitmap "gcMap" as a static array named
+  // after "name", and return the initializer of a "struct Tiger_gc_map".
+  private String sayGcMap(String name, BitSet gcMap, boolean indent) {
+    if (gcMap.isEmpty()) return "{0, NULL}";
+    String words = java.util.Arrays.stream(gcMap.toLongArray())
+        .mapToObj(w -> String.format("0x%xUL", w)).collect(Collectors.joining(", "));
+    if (indent) this.printSpaces();
+    this.sayln("static const unsigned long " + name + "_bits[] = {" + words + "};");
+    return "{" + gcMap.length() + ", " + name + "_bits}";
+  }
+
+  // GC frames
+  private boolean isSite(Stm.T s) {
+    return s instanceof InvokeVirtual || s instanceof NewObject || s instanceof NewIntArray;
+  }
+
+  // Print the descriptor of every safe point of the current method,
+  // that is which slots of the GC frame are alive at that point.
+  // Without the liveness information, all the slots are alive.
+  private void sayFrameDescs(LinkedList<Block.T> blocks) {
+    this.curMethodSites.clear();
+    if (this.curMethodSlots.isEmpty()) return;
+    for (Block.T block : blocks) {
+      for (Stm.T s : ((BlockSingle) block).stms) {
+        if (!isSite(s)) continue;
+        HashSet<String> aliveVarSet = this.livenessStmIn == null ? null : this.livenessStmIn.get(s);
+        BitSet gcMap = new BitSet();
+        int slot = 0;
+        for (DecSingle e : this.curMethodSlots) {
+          if (aliveVarSet == null || aliveVarSet.contains(e.id)) gcMap.set(slot);
+          slot++;
+        }
+        int site = this.curMethodSites.size();
+        this.curMethodSites.put(s, site);
+        String gcMapInit = sayGcMap("gc_site_" + site, gcMap, true);
+        this.isayln("static const struct Tiger_frame_desc gc_site_" + site + " = {" + gcMapInit + "};");
+      }
+    }
+  }
+
+  // Push the GC frame of the current method, whose slots point to
+  // the reference formals and locals. It's popped at the return.
+  private void sayFramePush() {
+    if (this.curMethodSlots.isEmpty()) return;
+    this.isayln("struct {");
+    this.isayln("  struct Tiger_frame *prev;");
+    this.isayln("  const struct Tiger_frame_desc *desc;");
+    this.isayln("  void **slots[" + this.curMethodSlots.size() + "];");
+    this.isayln("} gc_frame = {prev, NULL, {" + this.curMethodSlots.stream()
+        .map(e -> "(void**)&" + e.id).collect(Collectors.joining(", ")) + "}};");
+    this.isayln("prev = (struct Tiger_frame*)&gc_frame;");
+  }
+
+  // Select the descriptor of the safe point "s".
+  private void saySite(Stm.T s) {
+    if (this.curMethodSlots.isEmpty()) return;
+    this.isayln("gc_frame.desc = &gc_site_" + this.curMethodSites.get(s) + ";");
+  }
+
+  // The reference formals and locals of a method, in the slots of its
+  // GC frame. There is no frame with conservative roots.
+  private void collectSlots(LinkedList<Dec.T> decs) {
+    if (Control.ConCodeGen.conservativeRoots) return;
+    decs.stream().map(e -> (DecSingle)e).filter(e -> isRefType(e.type))
+            .forEach(this.curMethodSlots::add);
+  }
+
+  // The builder of the heap image returns the structure restored by
+  // the runtime, if any, at once. The int formals are the key of the
+  // image, as they are at the entry. All the slots are alive there.
+  private void sayImageRestore(MethodSingle m) {
+    if (this.curMethodImageArgs.isEmpty())
+      this.isayln("const long *image_args = NULL;");
+    else
+      this.isayln("long image_args[] = {"
+          + String.join(", ", this.curMethodImageArgs) + "};");
+    this.isayln("void *image_result;");
+    if (!this.curMethodSlots.isEmpty()) {
+      BitSet gcMap = new BitSet();
+      gcMap.set(0, this.curMethodSlots.size());
+      String gcMapInit = sayGcMap("gc_site_image", gcMap, true);
+      this.isayln("static const struct Tiger_frame_desc gc_site_image = {" + gcMapInit + "};");
+      this.isayln("gc_frame.desc = &gc_site_image;");
+    }
+    this.isayln("if (Tiger_image_restore(\"" + this.curMethodName + "\", image_args, "
+        + this.curMethodImageArgs.size() + ", &image_result)) {");
+    if (this.curMethodTraced)
+      this.isayln("  Tiger_trace_event(\"" + this.curMethodName + "\", 'E');");
+    if (!this.curMethodSlots.isEmpty())
+      this.isayln("  prev = gc_frame.prev;");
+    this.printSpaces();
+    this.say("  return (");
+    m.retType.accept(this);
+    this.sayln(")image_result;");
+    this.isayln("}");
+  }
+
+  // Check that the builder of the heap image returns a reference, and
+  // takes only ints, which can be compared across runs.
+  private void checkImageMethod(LinkedList<Method.T> methods) {
+    String name = Control.ConCodeGen.heapImage;
+    for (Method.T mm : methods) {
+      MethodSingle m = (MethodSingle) mm;
+      if (!name.equals(m.classId + "." + m.id))
+        continue;
+      boolean refFormal = m.formals.stream().map(d -> (DecSingle) d)
+          .anyMatch(d -> !d.id.equals("this") && isRefType(d.type));
+      if (!isRefType(m.retType) || refFormal) {
+        System.out.println("Error: -heapImage: " + name
+            + " must return an object or an array, and take only ints or booleans");
+        System.exit(1);
+      }
+      return;
+    }
+    System.out.println("Error: -heapImage: no method " + name);
+    System.exit(1);
+  }
+
+  // Record the entry of the current method, if traced (see "trace.h").
+  private void sayTraceEntry() {
+    this.curMethodTraced = Control.isTracing(this.curMethodName);
+    if (this.curMethodTraced)
+      this.isayln("Tiger_trace_event(\"" + this.curMethodName + "\", 'B');");
+  }
+
+  private void sayLocal(DecSingle dec) {
+    this.say("  ");
+    dec.type.accept(this);
+    if (isRefType(dec.type))
+      this.say(" " + dec.id + " = NULL;\n");
+    else this.say(" " + dec.id + ";\n");
+  }
+
   // method
   @Override
   public void visit(MethodSingle m) {
-    this.curMethodFormals.clear();
-    this.curMethodLocalRefs.clear();
-    m.formals.stream().map(e -> (DecSingle)e).forEach(this.curMethodFormals::add);
-    m.locals.stream().map(e -> (DecSingle)e).filter(e -> e.type instanceof ClassType || e.type instanceof IntArrayType)
-            .forEach(this.curMethodLocalRefs::add);
-
+    this.curClassId = m.classId;
+    this.curMethodName = m.classId + "." + m.id;
+    this.curMethodAllocSites = 0;
+    this.curMethodSlots.clear();
+    collectSlots(m.formals);
+    collectSlots(m.locals);
+    this.curMethodImageArgs = null;
+    if (this.curMethodName.equals(Control.ConCodeGen.heapImage))
+      this.curMethodImageArgs = m.formals.stream().map(d -> ((DecSingle) d).id)
+          .filter(id -> !id.equals("this")).collect(Collectors.toCollection(LinkedList::new));
+
+    this.say("TIGER_METHOD ");
     m.retType.accept(this);
     this.say(" " + m.classId + "_" + m.id + "(");
     int size = m.formals.size();
@@ -354,13 +569,14 @@ public class PrettyPrintVisitor implements Visitor {
     this.sayln("{");
 
     for (Dec.T d : m.locals) {
-      DecSingle dec = (DecSingle) d;
-      this.say("  ");
-      dec.type.accept(this);
-      this.say(" " + dec.id + ";\n");
+      sayLocal((DecSingle) d);
     }
     this.sayln("");
-    this.isayln("void* fprev;");
+    sayFrameDescs(m.blocks);
+    sayFramePush();
+    sayTraceEntry();
+    if (this.curMethodImageArgs != null)
+      sayImageRestore(m);
     this.isayln("goto " + m.entry + ";");
 
     for (Block.T block : m.blocks){
@@ -372,22 +588,22 @@ public class PrettyPrintVisitor implements Visitor {
 
   @Override
   public void visit(MainMethodSingle m) {
-    this.curMethodFormals.clear();
-    this.curMethodLocalRefs.clear();
-    m.locals.stream().map(e -> (DecSingle)e).filter(e -> e.type instanceof ClassType || e.type instanceof IntArrayType)
-            .forEach(this.curMethodLocalRefs::add);
-
-    this.sayln("int Tiger_main ()");
+    this.curClassId = null;
+    this.curMethodName = "main";
+    this.curMethodImageArgs = null;
+    this.curMethodAllocSites = 0;
+    this.curMethodSlots.clear();
+    collectSlots(m.locals);
+
+    this.sayln("TIGER_METHOD int Tiger_main ()");
     this.sayln("{");
     for (Dec.T dec : m.locals) {
-      this.say("  ");
-      DecSingle d = (DecSingle) dec;
-      d.type.accept(this);
-      this.say(" ");
-      this.sayln(d.id + ";");
+      sayLocal((DecSingle) dec);
     }
     this.sayln("");
-    this.isayln("void* fprev;");
+    sayFrameDescs(m.blocks);
+    sayFramePush();
+    sayTraceEntry();
     this.isayln("goto L_0;");
     for (Block.T block : m.blocks) {
       BlockSingle b = (BlockSingle) block;
@@ -401,7 +617,7 @@ public class PrettyPrintVisitor implements Visitor {
   public void visit(VtableSingle v) {
     this.sayln("struct " + v.id + "_vtable");
     this.sayln("{");
-    this.isayln("char *gc_map;");
+    this.isayln("struct Tiger_class tiger_class;");
     for (cfg.Ftuple t : v.ms) {
       this.say("  ");
       t.ret.accept(this);
@@ -411,9 +627,10 @@ public class PrettyPrintVisitor implements Visitor {
   }
 
   private void outputVtable(VtableSingle v) {
+    String gcMapInit = sayGcMap(v.id + "_gc_map", v.gcMap, false);
     this.sayln("struct " + v.id + "_vtable " + v.id + "_vtable_ = ");
     this.sayln("{");
-    this.isayln(String.format("\"%s\"", v.gcMap) + ",");
+    this.isayln("{sizeof(struct " + v.id + "), " + gcMapInit + ", \"" + v.id + "\"},");
     for (cfg.Ftuple t : v.ms) {
       this.say("  ");
       this.sayln(t.classs + "_" + t.id + ",");
@@ -424,14 +641,17 @@ public class PrettyPrintVisitor implements Visitor {
   // class
   @Override
   public void visit(ClassSingle c) {
+    this.classRefFields.put(c.id, c.decs.stream().filter(t -> isRefType(t.type))
+            .collect(Collectors.toMap(t -> t.id, t -> t.type, (a, b) -> b, HashMap::new)));
     this.sayln("struct " + c.id);
     this.sayln("{");
     this.sayln("  struct " + c.id + "_vtable *vptr;");
-    this.isayln("int size;");
-    this.isayln("void *forwarding;");
     for (cfg.Tuple t : c.decs) {
       this.say("  ");
-      t.type.accept(this);
+      if (Control.ConCodeGen.compressedRefs && isRefType(t.type))
+        this.say("tiger_ref");
+      else
+        t.type.accept(this);
       this.say(" ");
       this.sayln(t.id + ";");
     }
@@ -441,6 +661,9 @@ public class PrettyPrintVisitor implements Visitor {
   // program
   @Override
   public void visit(ProgramSingle p) {
+    if (Control.ConCodeGen.heapImage != null)
+      checkImageMethod(p.methods);
+
     // we'd like to output to a file, rather than the "stdout".
     try {
       String outputName;
@@ -460,7 +683,18 @@ public class PrettyPrintVisitor implements Visitor {
 
     this.sayln("// This is automatically generated by the Tiger compiler.");
     this.sayln("// Do NOT modify!\n");
-    this.sayln("#include \"runtime.c\"\n");
+    if (Control.ConCodeGen.compressedRefs)
+      this.sayln("#define TIGER_COMPRESSED_REFS");
+    this.sayln("#include \"tiger.h\"\n");
+    if (Control.ConCodeGen.readBarrier)
+      this.sayln("int Tiger_readBarrier = 1;\n");
+    if (Control.ConCodeGen.conservativeRoots)
+      this.sayln("int Tiger_conservativeRoots = 1;\n");
+    if (Control.ConCodeGen.allocProfile)
+      this.sayln("int Tiger_allocProfile = 1;\n");
+    if (Control.isTracing("main") || p.methods.stream().map(m -> (MethodSingle) m)
+        .anyMatch(m -> Control.isTracing(m.classId + "." + m.id)))
+      this.sayln("int Tiger_methodTrace = 1;\n");
 
     this.sayln("// structures");
     for (Class.T c : p.classes) {
@@ -489,6 +723,19 @@ public class PrettyPrintVisitor implements Visitor {
     p.mainMethod.accept(this);
     this.sayln("");
 
+    // for the profiler (see "profile.h")
+    this.sayln("// method table");
+    this.sayln("static const struct Tiger_method_sym method_syms[] =");
+    this.sayln("{");
+    for (Method.T m : p.methods) {
+      MethodSingle ms = (MethodSingle) m;
+      this.isayln("{\"" + ms.classId + "." + ms.id + "\", (void *)" + ms.classId + "_" + ms.id + "},");
+    }
+    this.isayln("{\"main\", (void *)Tiger_main},");
+    this.isayln("{NULL, NULL},");
+    this.sayln("};");
+    this.sayln("const struct Tiger_method_sym *Tiger_methodSyms = method_syms;");
+
     this.say("\n\n");
 
     try {
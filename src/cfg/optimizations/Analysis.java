@@ -0,0 +1,18 @@
+package cfg.optimizations;
+
+/**
+ * An analysis of one method at a time. The pass manager keeps its
+ * result for a method until a transformation changes that method.
+ *
+ * @param <R> the result for one method
+ */
+public interface Analysis<R> {
+  // printed with "-verbose"
+  String name();
+
+  // the name given to "-skip"
+  String id();
+
+  // "method" is a "Method.T" or a "MainMethod.T"
+  R analyze(cfg.Acceptable method);
+}
@@ -18,13 +18,33 @@ import cfg.Cfg.Type.IntArrayType;
 import cfg.Cfg.Type.IntType;
 import cfg.Cfg.Vtable.VtableSingle;
 
-public class AvailExp implements cfg.Visitor {
+public class AvailExp implements cfg.Visitor, Analysis<AvailExp> {
   
   public AvailExp()
   {
     
   }
 
+  @Override
+  public String name()
+  {
+    return "Available expression";
+  }
+
+  @Override
+  public String id()
+  {
+    return "cfg.availExp";
+  }
+
+  @Override
+  public AvailExp analyze(cfg.Acceptable method)
+  {
+    AvailExp availExp = new AvailExp();
+    method.accept(availExp);
+    return availExp;
+  }
+
   // /////////////////////////////////////////////////////
   // operand
   @Override
@@ -11,13 +11,15 @@ import cfg.Cfg.Transfer.Goto;
 import cfg.Cfg.Transfer.If;
 import cfg.Cfg.Transfer.Return;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
 
-public class ConstProp implements cfg.Visitor {
+public class ConstProp implements cfg.Visitor, Transform {
   public Program.T program;
 
   private Cfg.MainMethod.T mainMethod;
@@ -28,6 +30,8 @@ public class ConstProp implements cfg.Visitor {
 
   private HashMap<T, HashSet<T>> reachingDefStmIn;
   private HashMap<Cfg.Transfer.T, HashSet<T>> reachingDefTransferIn;
+
+  private final ReachingDefinition reachingDef = new ReachingDefinition();
   
   public ConstProp() {
     this.program = null;
@@ -46,6 +50,32 @@ public class ConstProp implements cfg.Visitor {
     this.reachingDefTransferIn = reachingDefTransferIn;
   }
 
+  @Override
+  public String name() {
+    return "Constant propagation";
+  }
+
+  @Override
+  public String id() {
+    return "cfg.constProp";
+  }
+
+  @Override
+  public List<Analysis<?>> requires() {
+    return Collections.singletonList(this.reachingDef);
+  }
+
+  @Override
+  public cfg.Acceptable transform(cfg.Acceptable method, PassManager pm) {
+    ReachingDefinition rd = pm.get(this.reachingDef, method);
+    this.reachingDefStmIn = rd.getStmIn();
+    this.reachingDefTransferIn = rd.getTransferIn();
+    method.accept(this);
+    if (method instanceof MethodSingle)
+      return this.method;
+    return this.mainMethod;
+  }
+
   private Cfg.Operand.T makePropagate(HashSet<Cfg.Stm.T> rdiset, Cfg.Operand.T target) {
     Cfg.Operand.T ret = target;
     if (target instanceof Cfg.Operand.Var) {
@@ -99,7 +129,8 @@ public class ConstProp implements cfg.Visitor {
     LinkedList<Cfg.Operand.T> args = new LinkedList<>();
     HashSet<Cfg.Stm.T> rdiset = reachingDefStmIn.get(s);
     s.args.stream().map(arg -> makePropagate(rdiset, arg)).forEach(args::add);
-    this.stm = new InvokeVirtual(s.dst, s.obj, s.f, args);
+    if (args.equals(s.args)) this.stm = s;
+    else this.stm = new InvokeVirtual(s.dst, s.obj, s.f, args);
   }
 
   @Override
@@ -194,37 +225,45 @@ public class ConstProp implements cfg.Visitor {
     else this.transfer = new Return(ret);
   }
 
-  // block
+  // block, kept if nothing changed
   @Override
   public void visit(BlockSingle b) {
     LinkedList<Cfg.Stm.T> stms = new LinkedList<>();
-    b.stms.forEach(stm -> {
+    boolean changed = false;
+    for (Cfg.Stm.T stm : b.stms) {
       stm.accept(this);
       stms.add(this.stm);
-    });
+      changed = changed || this.stm != stm;
+    }
     b.transfer.accept(this);
-    this.block = new BlockSingle(b.label, stms, this.transfer);
+    if (!changed && this.transfer == b.transfer) this.block = b;
+    else this.block = new BlockSingle(b.label, stms, this.transfer);
+  }
+
+  private LinkedList<Cfg.Block.T> visitBlocks(LinkedList<Cfg.Block.T> blocks) {
+    LinkedList<Cfg.Block.T> ret = new LinkedList<>();
+    boolean changed = false;
+    for (Cfg.Block.T b : blocks) {
+      b.accept(this);
+      ret.add(this.block);
+      changed = changed || this.block != b;
+    }
+    return changed ? ret : null;
   }
 
-  // method
+  // method, kept if nothing changed
   @Override
   public void visit(MethodSingle m) {
-    LinkedList<Cfg.Block.T> blocks = new LinkedList<>();
-    m.blocks.forEach(b -> {
-      b.accept(this);
-      blocks.add(this.block);
-    });
-    this.method = new MethodSingle(m.retType, m.id, m.classId, m.formals, m.locals, blocks, m.entry, m.exit, m.retValue);
+    LinkedList<Cfg.Block.T> blocks = visitBlocks(m.blocks);
+    if (blocks == null) this.method = m;
+    else this.method = new MethodSingle(m.retType, m.id, m.classId, m.formals, m.locals, blocks, m.entry, m.exit, m.retValue);
   }
 
   @Override
   public void visit(MainMethodSingle m) {
-    LinkedList<Cfg.Block.T> blocks = new LinkedList<>();
-    m.blocks.forEach(b -> {
-      b.accept(this);
-      blocks.add(this.block);
-    });
-    this.mainMethod = new MainMethodSingle(m.locals, blocks);
+    LinkedList<Cfg.Block.T> blocks = visitBlocks(m.blocks);
+    if (blocks == null) this.mainMethod = m;
+    else this.mainMethod = new MainMethodSingle(m.locals, blocks);
   }
 
   // program
@@ -19,13 +19,37 @@ import cfg.Cfg.Type.IntArrayType;
 import cfg.Cfg.Type.IntType;
 import cfg.Cfg.Vtable.VtableSingle;
 
-public class CopyProp implements cfg.Visitor {
+import java.util.Collections;
+import java.util.List;
+
+public class CopyProp implements cfg.Visitor, Transform {
   public Program.T program;
   
   public CopyProp() {
     this.program = null;
   } 
 
+  @Override
+  public String name() {
+    return "Copy propagation";
+  }
+
+  @Override
+  public String id() {
+    return "cfg.copyProp";
+  }
+
+  @Override
+  public List<Analysis<?>> requires() {
+    return Collections.emptyList();
+  }
+
+  @Override
+  public cfg.Acceptable transform(cfg.Acceptable method, PassManager pm) {
+    method.accept(this);
+    return method;
+  }
+
   // /////////////////////////////////////////////////////
   // operand
   @Override
@@ -19,7 +19,10 @@ import cfg.Cfg.Type.IntArrayType;
 import cfg.Cfg.Type.IntType;
 import cfg.Cfg.Vtable.VtableSingle;
 
-public class Cse implements cfg.Visitor {
+import java.util.Collections;
+import java.util.List;
+
+public class Cse implements cfg.Visitor, Transform {
   public Program.T program;
   
   public Cse()
@@ -27,6 +30,31 @@ public class Cse implements cfg.Visitor {
     this.program = null;
   } 
 
+  @Override
+  public String name()
+  {
+    return "Common subexpression elimination";
+  }
+
+  @Override
+  public String id()
+  {
+    return "cfg.cse";
+  }
+
+  @Override
+  public List<Analysis<?>> requires()
+  {
+    return Collections.singletonList(new AvailExp());
+  }
+
+  @Override
+  public cfg.Acceptable transform(cfg.Acceptable method, PassManager pm)
+  {
+    method.accept(this);
+    return method;
+  }
+
   // /////////////////////////////////////////////////////
   // operand
   @Override
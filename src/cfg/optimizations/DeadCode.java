@@ -9,14 +9,18 @@ import cfg.Cfg.Program.ProgramSingle;
 import cfg.Cfg.Stm.Print;
 import cfg.Cfg.Stm.T;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.stream.Collectors;
 
-public class DeadCode implements cfg.Visitor {
+public class DeadCode implements cfg.Visitor, Transform {
   private HashMap<Cfg.Stm.T, HashSet<String>> livenessOut;
 
+  private final LivenessVisitor liveness = new LivenessVisitor();
+
   private Cfg.MainMethod.T mainMethod;
   private Cfg.Method.T method;
   private Cfg.Block.T block;
@@ -35,35 +39,65 @@ public class DeadCode implements cfg.Visitor {
     this.livenessOut = livenessOut;
   }
 
-  // block
+  @Override
+  public String name() {
+    return "Dead-code elimination";
+  }
+
+  @Override
+  public String id() {
+    return "cfg.deadCode";
+  }
+
+  @Override
+  public List<Analysis<?>> requires() {
+    return Collections.singletonList(this.liveness);
+  }
+
+  @Override
+  public cfg.Acceptable transform(cfg.Acceptable method, PassManager pm) {
+    this.livenessOut = pm.get(this.liveness, method).getStmLiveOut();
+    method.accept(this);
+    if (method instanceof MethodSingle)
+      return this.method;
+    return this.mainMethod;
+  }
+
+  // block, kept if nothing is dead
   @Override
   public void visit(BlockSingle b) {
     LinkedList<Cfg.Stm.T> stms = new LinkedList<>();
     stms.addAll(b.stms.stream()
             .filter(stm -> stm instanceof Print || stm instanceof Cfg.Stm.InvokeVirtual || this.livenessOut.get(stm).contains(stm.dst))
             .collect(Collectors.toList()));
-    this.block = new BlockSingle(b.label, stms, b.transfer);
+    if (stms.size() == b.stms.size()) this.block = b;
+    else this.block = new BlockSingle(b.label, stms, b.transfer);
+  }
+
+  private LinkedList<Cfg.Block.T> visitBlocks(LinkedList<Cfg.Block.T> blocks) {
+    LinkedList<Cfg.Block.T> ret = new LinkedList<>();
+    boolean changed = false;
+    for (Cfg.Block.T b : blocks) {
+      b.accept(this);
+      ret.add(this.block);
+      changed = changed || this.block != b;
+    }
+    return changed ? ret : null;
   }
 
-  // method
+  // method, kept if nothing is dead
   @Override
   public void visit(MethodSingle m) {
-    LinkedList<Cfg.Block.T> blocks = new LinkedList<>();
-    m.blocks.stream().forEach(b -> {
-      b.accept(this);
-      blocks.add(this.block);
-    });
-    this.method = new MethodSingle(m.retType, m.id, m.classId, m.formals, m.locals, blocks, m.entry, m.exit, m.retValue);
+    LinkedList<Cfg.Block.T> blocks = visitBlocks(m.blocks);
+    if (blocks == null) this.method = m;
+    else this.method = new MethodSingle(m.retType, m.id, m.classId, m.formals, m.locals, blocks, m.entry, m.exit, m.retValue);
   }
 
   @Override
   public void visit(MainMethodSingle m) {
-    LinkedList<Cfg.Block.T> blocks = new LinkedList<>();
-    m.blocks.stream().forEach(b -> {
-      b.accept(this);
-      blocks.add(this.block);
-    });
-    this.mainMethod = new MainMethodSingle(m.locals, blocks);
+    LinkedList<Cfg.Block.T> blocks = visitBlocks(m.blocks);
+    if (blocks == null) this.mainMethod = m;
+    else this.mainMethod = new MainMethodSingle(m.locals, blocks);
   }
 
   // program
@@ -19,7 +19,7 @@ import util.Label;
 import java.util.*;
 import java.util.stream.Collectors;
 
-public class LivenessVisitor implements cfg.Visitor {
+public class LivenessVisitor implements cfg.Visitor, Analysis<LivenessVisitor> {
   // gen, kill for one statement
   private HashSet<String> oneStmGen;
   private HashSet<String> oneStmKill;
@@ -123,6 +123,23 @@ public class LivenessVisitor implements cfg.Visitor {
     return stmLiveOut;
   }
 
+  @Override
+  public String name() {
+    return "Liveness analysis";
+  }
+
+  @Override
+  public String id() {
+    return "cfg.liveness";
+  }
+
+  @Override
+  public LivenessVisitor analyze(cfg.Acceptable method) {
+    LivenessVisitor liveness = new LivenessVisitor();
+    method.accept(liveness);
+    return liveness;
+  }
+
   // /////////////////////////////////////////////////////
   // operand
   @Override
@@ -405,6 +422,11 @@ public class LivenessVisitor implements cfg.Visitor {
 
   private LinkedList<Block.T> reverseTopoSort(List<Block.T> blocks) {
     List<BlockSingle> bss = blocks.stream().map(b -> (BlockSingle)b).collect(Collectors.toList());
+    // the blocks kept by a transformation still have their old edges
+    bss.forEach(b -> {
+      b.in.clear();
+      b.out.clear();
+    });
     for (int i = 0; i < bss.size(); ++i) {
       Transfer.T transfer = bss.get(i).transfer;
       List<Label> ls = new LinkedList<>();
@@ -0,0 +1,120 @@
+package cfg.optimizations;
+
+import cfg.Cfg;
+import cfg.Cfg.Program.ProgramSingle;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Runs the transformations on the control-flow graph, one method at a
+ * time, and computes the analyses they require. The result of an
+ * analysis is cached per method object: a transformation builds a new
+ * method only when it changes it, which drops the results of the old
+ * one, but those it preserves. So an analysis is only computed again
+ * for the methods which changed since.
+ */
+public class PassManager {
+  private ProgramSingle program;
+
+  // the results, by analysis id, then by method
+  private HashMap<String, IdentityHashMap<cfg.Acceptable, Object>> results;
+
+  public PassManager(Cfg.Program.T program) {
+    this.program = (ProgramSingle) program;
+    this.results = new HashMap<>();
+  }
+
+  public Cfg.Program.T program() {
+    return this.program;
+  }
+
+  // the main method first
+  public List<cfg.Acceptable> methods() {
+    List<cfg.Acceptable> methods = new LinkedList<>();
+    methods.add(this.program.mainMethod);
+    methods.addAll(this.program.methods);
+    return methods;
+  }
+
+  private IdentityHashMap<cfg.Acceptable, Object> resultsOf(Analysis<?> a) {
+    return this.results.computeIfAbsent(a.id(), id -> new IdentityHashMap<>());
+  }
+
+  // The result of "a" for "method", computed if not cached.
+  @SuppressWarnings("unchecked")
+  public <R> R get(Analysis<R> a, cfg.Acceptable method) {
+    IdentityHashMap<cfg.Acceptable, Object> cache = resultsOf(a);
+    Object r = cache.get(method);
+    if (r == null) {
+      r = a.analyze(method);
+      cache.put(method, r);
+    }
+    return (R) r;
+  }
+
+  // Compute "a" for the methods which have no result, as a pass of
+  // its own.
+  public void compute(Analysis<?> a) {
+    IdentityHashMap<cfg.Acceptable, Object> cache = resultsOf(a);
+    List<cfg.Acceptable> missing = methods().stream()
+        .filter(m -> !cache.containsKey(m)).collect(Collectors.toList());
+    if (missing.isEmpty())
+      return;
+    control.CompilerPass pass = new control.CompilerPass(a.name(),
+        this::program, this::program, () -> missing.forEach(m -> get(a, m)));
+    pass.exec();
+  }
+
+  // Run "t" over every method, unless it or one of the analyses it
+  // requires is skipped.
+  public void run(Transform t) {
+    if (control.Control.skipPass(t.id()))
+      return;
+    for (Analysis<?> a : t.requires()) {
+      if (control.Control.skipPass(a.id())) {
+        System.out.println("Warning: " + t.name() + " was skipped because it requires "
+            + a.name() + ".");
+        return;
+      }
+    }
+    t.requires().forEach(this::compute);
+    control.CompilerPass pass = new control.CompilerPass(t.name(),
+        this::program, this::program, () -> apply(t));
+    pass.exec();
+  }
+
+  private void apply(Transform t) {
+    Cfg.MainMethod.T mainMethod = (Cfg.MainMethod.T) replace(t, this.program.mainMethod);
+    LinkedList<Cfg.Method.T> methods = new LinkedList<>();
+    boolean changed = mainMethod != this.program.mainMethod;
+    for (Cfg.Method.T m : this.program.methods) {
+      Cfg.Method.T n = (Cfg.Method.T) replace(t, m);
+      changed = changed || n != m;
+      methods.add(n);
+    }
+    if (changed)
+      this.program = new ProgramSingle(this.program.classes,
+          this.program.vtables, methods, mainMethod);
+  }
+
+  // Transform "m", and if it changed, move the results which "t"
+  // preserves to the new method, and drop the others.
+  private cfg.Acceptable replace(Transform t, cfg.Acceptable m) {
+    cfg.Acceptable n = t.transform(m, this);
+    if (n == m)
+      return m;
+    List<String> preserved = t.preserves().stream().map(Analysis::id)
+        .collect(Collectors.toList());
+    for (Map.Entry<String, IdentityHashMap<cfg.Acceptable, Object>> e : this.results.entrySet()) {
+      Object r = e.getValue().remove(m);
+      if (r != null && preserved.contains(e.getKey()))
+        e.getValue().put(n, r);
+    }
+    return n;
+  }
+}
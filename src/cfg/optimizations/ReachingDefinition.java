@@ -15,7 +15,7 @@ import java.util.HashSet;
 import java.util.Set;
 import java.util.stream.Collectors;
 
-public class ReachingDefinition implements cfg.Visitor {
+public class ReachingDefinition implements cfg.Visitor, Analysis<ReachingDefinition> {
   // defs for methods
   private HashMap<String, HashSet<Stm.T>> defs;
 
@@ -82,6 +82,23 @@ public class ReachingDefinition implements cfg.Visitor {
     return transferIn;
   }
 
+  @Override
+  public String name() {
+    return "Reaching definition";
+  }
+
+  @Override
+  public String id() {
+    return "cfg.reaching";
+  }
+
+  @Override
+  public ReachingDefinition analyze(cfg.Acceptable method) {
+    ReachingDefinition rd = new ReachingDefinition();
+    method.accept(rd);
+    return rd;
+  }
+
   // statements
   @Override
   public void visit(Add s) {
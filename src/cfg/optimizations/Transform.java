@@ -0,0 +1,29 @@
+package cfg.optimizations;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A transformation of one method at a time, run by the pass manager.
+ * It returns the method itself when it changes nothing, so that the
+ * analyses of the method stay valid.
+ */
+public interface Transform {
+  // printed with "-verbose"
+  String name();
+
+  // the name given to "-skip"
+  String id();
+
+  // the analyses computed for every method before it runs
+  List<Analysis<?>> requires();
+
+  // the analyses whose results still hold for the methods it changes
+  default List<Analysis<?>> preserves() {
+    return Collections.emptyList();
+  }
+
+  // "method" is a "Method.T" or a "MainMethod.T", and the result is
+  // of the same kind; "pm" has the results of the required analyses
+  cfg.Acceptable transform(cfg.Acceptable method, PassManager pm);
+}
@@ -513,10 +513,10 @@ public class Ast {
 
     public static class VtableSingle extends T {
       public String id; // name of the class
-      public String gcMap; // class gc map
+      public java.util.BitSet gcMap; // class gc map, one bit per word slot
       public java.util.ArrayList<codegen.C.Ftuple> ms; // all methods
 
-      public VtableSingle(String id, String gcMap, ArrayList<codegen.C.Ftuple> ms) {
+      public VtableSingle(String id, java.util.BitSet gcMap, ArrayList<codegen.C.Ftuple> ms) {
         this.id = id;
         this.gcMap = gcMap;
         this.ms = ms;
@@ -18,15 +18,24 @@ import codegen.C.Ast.Vtable.VtableSingle;
 import control.Control;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class PrettyPrintVisitor implements Visitor {
   private int indentLevel;
   private java.io.BufferedWriter writer;
+  // reference fields of every class with their types, used by the
+  // compressed references
+  private HashMap<String, HashMap<String, Ast.Type.T>> classRefFields;
+  private String curClassId;
 
   public PrettyPrintVisitor() {
     this.indentLevel = 2;
+    this.classRefFields = new HashMap<>();
+    this.curClassId = null;
   }
 
   private void indent() {
@@ -81,7 +90,7 @@ public class PrettyPrintVisitor implements Visitor {
   @Override
   public void visit(ArraySelect e) {
     e.array.accept(this);
-    this.say("[3 + ");
+    this.say("[TIGER_ARRAY_BASE + ");
     e.index.accept(this);
     this.say("]");
   }
@@ -89,7 +98,7 @@ public class PrettyPrintVisitor implements Visitor {
   @Override
   public void visit(Call e) {
     e.exp.accept(this);
-    this.say("->vptr->" + e.id + "(" + e.assign);
+    this.say("->vptr->" + e.id + "(" + load(e.assign));
     int size = e.args.size();
     if (size == 0) {
       this.say(")");
@@ -104,14 +113,14 @@ public class PrettyPrintVisitor implements Visitor {
 
   @Override
   public void visit(Id e) {
-    this.say(e.id);
+    this.say(load(e.id));
   }
 
   @Override
   public void visit(Length e) {
-    this.say("*(");
+    this.say("TIGER_ARRAY_LENGTH(");
     e.array.accept(this);
-    this.say(" + 1)");
+    this.say(")");
   }
 
   @Override
@@ -157,7 +166,7 @@ public class PrettyPrintVisitor implements Visitor {
   @Override
   public void visit(NewObject e) {
     this.say("(" + e.name + " = ((struct " + e.classType + "*)(Tiger_new (&" + e.classType
-            + "_vtable_, sizeof(struct " + e.classType + ")))), " + e.name + ")");
+            + "_vtable_))), " + e.name + ")");
   }
 
   @Override
@@ -196,9 +205,42 @@ public class PrettyPrintVisitor implements Visitor {
   }
 
   // statements
+  // A field of "this" is stored only after the value is computed,
+  // as the collector may move "this" meanwhile, and the card of "this"
+  // is dirtied for the generational collector. The temporaries have a
+  // "$", so they never hide a variable of the program.
+  private boolean isField(String id) {
+    return id.startsWith("this->");
+  }
+
+  // The type of the field "id" of "this", if it is a reference.
+  private Ast.Type.T refFieldType(String id) {
+    if (this.curClassId == null || !isField(id))
+      return null;
+    return this.classRefFields.get(this.curClassId).get(id.substring("this->".length()));
+  }
+
+  // The value of the variable or field "id": a compressed reference
+  // field is decoded to a pointer.
+  private String load(String id) {
+    Ast.Type.T t = refFieldType(id);
+    if (t == null || !Control.ConCodeGen.compressedRefs)
+      return id;
+    String type = t instanceof ClassType ? "struct " + ((ClassType) t).id + " *" : "int *";
+    return "((" + type + ")Tiger_decode(" + id + "))";
+  }
+
   @Override
   public void visit(Assign s) {
     this.printSpaces();
+    if (isField(s.id)) {
+      boolean ref = refFieldType(s.id) != null;
+      this.say("{ " + (ref ? "void *" : "__typeof__(" + s.id + ")") + " v$ = ");
+      s.exp.accept(this);
+      this.sayln("; " + s.id + (ref && Control.ConCodeGen.compressedRefs
+          ? " = Tiger_encode(v$);" : " = v$;") + " TIGER_WRITE_BARRIER(this); }");
+      return;
+    }
     this.say(s.id + " = ");
     s.exp.accept(this);
     this.sayln(";");
@@ -207,7 +249,15 @@ public class PrettyPrintVisitor implements Visitor {
   @Override
   public void visit(AssignArray s) {
     this.printSpaces();
-    this.say(s.id + "[3 + ");
+    if (isField(s.id)) {
+      this.say("{ int i$ = ");
+      s.index.accept(this);
+      this.say("; int v$ = ");
+      s.exp.accept(this);
+      this.sayln("; " + load(s.id) + "[TIGER_ARRAY_BASE + i$] = v$; }");
+      return;
+    }
+    this.say(s.id + "[TIGER_ARRAY_BASE + ");
     s.index.accept(this);
     this.say("] = ");
     s.exp.accept(this);
@@ -242,8 +292,8 @@ public class PrettyPrintVisitor implements Visitor {
   @Override
   public void visit(Print s) {
     this.printSpaces();
-    if (s.exp instanceof Num) this.say("System_out_println_int(");
-    else this.say("System_out_println_string(");
+    if (s.exp instanceof StringLiteral) this.say("System_out_println_string(");
+    else this.say("System_out_println_int(");
     s.exp.accept(this);
     this.sayln(");");
   }
@@ -283,38 +333,56 @@ public class PrettyPrintVisitor implements Visitor {
     this.sayln(" " + d.id);
   }
 
-  private String genMemGCMap(List<Dec.T> list) {
-    return list.stream().map(f -> {
-      Ast.Type.T t = ((DecSingle)f).type;
-      if (t instanceof ClassType || t instanceof IntArray) return "1";
-      else return "0";
-    }).reduce("", String::concat);
-  }
-
   private void isayln(String content) {
     this.printSpaces();
     this.sayln(content);
   }
 
+  private boolean isRefType(Ast.Type.T t) {
+    return t instanceof ClassType || t instanceof IntArray;
+  }
+
+  private void sayLocal(DecSingle dec) {
+    this.say("  ");
+    dec.type.accept(this);
+    if (isRefType(dec.type))
+      this.say(" " + dec.id + " = NULL;\n");
+    else this.say(" " + dec.id + ";\n");
+  }
+
+  // GC frames
+  // The reference formals and locals of a method, in the slots of its
+  // GC frame (see "struct Tiger_frame" in "gc.h").
+  private List<String> frameSlots(List<Dec.T> formals, List<Dec.T> locals) {
+    return Stream.concat(formals.stream(), locals.stream()).map(d -> (DecSingle) d)
+        .filter(d -> isRefType(d.type)).map(d -> d.id).collect(Collectors.toList());
+  }
+
+  // Push the GC frame of a method, with a single descriptor in which
+  // all the slots are alive, as there is no liveness information on
+  // this AST. It's popped at the return.
+  private void sayFramePush(List<String> slots) {
+    if (slots.isEmpty()) return;
+    BitSet gcMap = new BitSet();
+    gcMap.set(0, slots.size());
+    this.isayln("static const unsigned long gc_site_bits[] = {"
+        + java.util.Arrays.stream(gcMap.toLongArray()).mapToObj(w -> String.format("0x%xUL", w))
+        .collect(Collectors.joining(", ")) + "};");
+    this.isayln("static const struct Tiger_frame_desc gc_site = {{"
+        + gcMap.length() + ", gc_site_bits}};");
+    this.isayln("struct {");
+    this.isayln("  struct Tiger_frame *prev;");
+    this.isayln("  const struct Tiger_frame_desc *desc;");
+    this.isayln("  void **slots[" + slots.size() + "];");
+    this.isayln("} gc_frame = {prev, &gc_site, {" + slots.stream()
+        .map(id -> "(void**)&" + id).collect(Collectors.joining(", ")) + "}};");
+    this.isayln("prev = (struct Tiger_frame*)&gc_frame;");
+  }
+
   // method
   @Override
   public void visit(MethodSingle m) {
-    // generate a gc frame struct
-    String gcFrameName = String.format("struct %s_%s_gc_frame", m.classId, m.id);
-    this.sayln(gcFrameName + " {");
-    this.isayln("void *prev;");
-    this.isayln("char *arguments_gc_map;");
-    this.isayln("void *arguments_base_address;");
-    this.isayln("int local_references_cnt;");
-    m.locals.stream().map(l -> (DecSingle)l)
-            .filter(d -> d.type instanceof ClassType || d.type instanceof IntArray)
-            .forEach(d -> {
-              if (d.type instanceof ClassType) this.isayln(String.format("struct %s * *%s;", d.type, d.id));
-              else this.isayln("int * *" + d.id + ";");
-            });
-    this.sayln("};\n");
-
-    // generate the method body
+    this.curClassId = m.classId;
     m.retType.accept(this);
     this.say(" " + m.classId + "_" + m.id + "(");
     int size = m.formals.size();
@@ -329,86 +397,51 @@ public class PrettyPrintVisitor implements Visitor {
     this.sayln(")");
     this.sayln("{");
 
-    // generate a gc stack frame and push it into the stack
-    this.isayln(gcFrameName + " frame;");
-    this.isayln("frame.prev = prev;");
-    this.isayln("prev = &frame;");
-    this.isayln(String.format("frame.arguments_gc_map = \"%s\";", genMemGCMap(m.formals)));
-    this.isayln("frame.arguments_base_address = &this;");
-    long localRefCnt = genMemGCMap(m.locals).chars().filter(s -> s == '1').count();
-    this.isayln(String.format("frame.local_references_cnt = %s;", localRefCnt));
-    this.isayln("");
-
-    for (Dec.T d : m.locals) {
-      DecSingle dec = (DecSingle) d;
-      this.say("  ");
-      dec.type.accept(this);
-      this.say(" " + dec.id + ";\n");
-    }
+    for (Dec.T d : m.locals)
+      sayLocal((DecSingle) d);
     this.sayln("");
-    m.locals.stream().map(l -> (DecSingle) l)
-            .filter(d -> d.type instanceof ClassType || d.type instanceof IntArray)
-            .forEach(d -> this.isayln(String.format("frame.%s = &%s;", d.id, d.id)));
-    if (0 != localRefCnt) this.sayln("");
+    List<String> slots = frameSlots(m.formals, m.locals);
+    sayFramePush(slots);
+    if (!slots.isEmpty()) this.sayln("");
 
     m.stms.stream().forEach(s -> s.accept(this));
     this.sayln("");
 
-    // pop the gc frame
-    this.isayln("prev = frame.prev;");
-
-    this.say("  return ");
-    m.retExp.accept(this);
-    this.sayln(";");
+    if (slots.isEmpty()) {
+      this.say("  return ");
+      m.retExp.accept(this);
+      this.sayln(";");
+    } else {
+      // the return expression may call or allocate, so the frame is
+      // popped only after it
+      this.say("  ");
+      m.retType.accept(this);
+      this.say(" gc_ret = ");
+      m.retExp.accept(this);
+      this.sayln(";");
+      this.isayln("prev = gc_frame.prev;");
+      this.isayln("return gc_ret;");
+    }
     this.sayln("}\n");
   }
 
   @Override
   public void visit(MainMethodSingle m) {
-    this.sayln("struct Tiger_main_gc_frame {");
-    this.isayln("void *prev;");
-    this.isayln("char *arguments_gc_map;");
-    this.isayln("void *arguments_base_address;");
-    this.isayln("int local_references_cnt;");
-    m.locals.stream().map(l -> (DecSingle)l)
-            .filter(d -> d.type instanceof ClassType || d.type instanceof IntArray)
-            .forEach(d -> {
-              if (d.type instanceof ClassType) this.isayln(String.format("struct %s * *%s;", d.type, d.id));
-              else this.isayln("int * *" + d.id + ";");
-            });
-    this.sayln("};\n");
-
+    this.curClassId = null;
     this.sayln("int Tiger_main ()");
     this.sayln("{");
 
-    this.isayln("struct Tiger_main_gc_frame frame;");
-    this.isayln("frame.prev = prev;");
-    this.isayln("prev = &frame;");
-    this.isayln("frame.arguments_gc_map = \"\";");
-    this.isayln("frame.arguments_base_address = NULL;");
-    int localRefCnt = (int)Stream.of(genMemGCMap(m.locals)).filter(s -> s.equals("1")).count();
-    this.isayln(String.format("frame.local_references_cnt = %s;", localRefCnt));
-    this.isayln("");
-
-    for (Dec.T dec : m.locals) {
-      this.say("  ");
-      DecSingle d = (DecSingle) dec;
-      d.type.accept(this);
-      this.say(" ");
-      this.sayln(d.id + ";");
-    }
+    for (Dec.T dec : m.locals)
+      sayLocal((DecSingle) dec);
     this.sayln("");
-
-    m.locals.stream().map(l -> (DecSingle) l)
-            .filter(d -> d.type instanceof ClassType || d.type instanceof IntArray)
-            .forEach(d -> this.isayln(String.format("frame.%s = &%s;", d.id, d.id)));
-    if (0 != localRefCnt) this.sayln("");
+    List<String> slots = frameSlots(new ArrayList<>(), m.locals);
+    sayFramePush(slots);
+    if (!slots.isEmpty()) this.sayln("");
 
     m.stm.accept(this);
 
-    // pop the gc frame
-    this.isayln("prev = frame.prev;");
-
+    if (!slots.isEmpty())
+      this.isayln("prev = gc_frame.prev;");
     this.isayln("return 0;");
     this.sayln("}");
   }
@@ -417,7 +450,7 @@ public class PrettyPrintVisitor implements Visitor {
   @Override
   public void visit(VtableSingle v) {
     this.sayln("struct " + v.id + "_vtable {");
-    this.isayln("char *gc_map;");
+    this.isayln("struct Tiger_class tiger_class;");
     for (codegen.C.Ftuple t : v.ms) {
       this.say("  ");
       t.ret.accept(this);
@@ -427,9 +460,16 @@ public class PrettyPrintVisitor implements Visitor {
   }
 
   private void outputVtable(VtableSingle v) {
+    String gcMapInit = "{0, NULL}";
+    if (!v.gcMap.isEmpty()) {
+      this.sayln("static const unsigned long " + v.id + "_gc_map_bits[] = {"
+          + java.util.Arrays.stream(v.gcMap.toLongArray()).mapToObj(w -> String.format("0x%xUL", w))
+          .collect(Collectors.joining(", ")) + "};");
+      gcMapInit = "{" + v.gcMap.length() + ", " + v.id + "_gc_map_bits}";
+    }
     this.sayln("struct " + v.id + "_vtable " + v.id + "_vtable_ = ");
     this.sayln("{");
-    this.isayln(String.format("\"%s\"", v.gcMap) + ",");
+    this.isayln("{sizeof(struct " + v.id + "), " + gcMapInit + ", \"" + v.id + "\"},");
     for (codegen.C.Ftuple t : v.ms) {
       this.say("  ");
       this.sayln(t.classs + "_" + t.id + ",");
@@ -440,13 +480,17 @@ public class PrettyPrintVisitor implements Visitor {
   // class
   @Override
   public void visit(ClassSingle c) {
+    this.classRefFields.put(c.id, c.decs.stream().filter(t -> isRefType(t.type))
+        .collect(Collectors.toMap(t -> t.id, t -> t.type, (a, b) -> b, HashMap::new)));
     this.sayln("struct " + c.id + " {");
     this.isayln("struct " + c.id + "_vtable *vptr;");
-    this.isayln("int size;");
-    this.isayln("void *forwarding;");
     for (codegen.C.Tuple t : c.decs) {
       this.say("  ");
-      t.type.accept(this);
+      // as laid out by the class gc map (see "TranslateVisitor")
+      if (Control.ConCodeGen.compressedRefs && isRefType(t.type))
+        this.say("tiger_ref");
+      else
+        t.type.accept(this);
       this.say(" ");
       this.sayln(t.id + ";");
     }
@@ -467,7 +511,9 @@ public class PrettyPrintVisitor implements Visitor {
       System.exit(1);
     }
 
-    this.sayln("#include \"../runtime/runtime.c\"\n");
+    if (Control.ConCodeGen.compressedRefs)
+      this.sayln("#define TIGER_COMPRESSED_REFS");
+    this.sayln("#include \"../runtime/tiger.h\"\n");
 
     this.sayln("// This is automatically generated by the Tiger compiler.");
     this.sayln("// Do NOT modify!\n");
@@ -14,6 +14,7 @@ import codegen.C.Ast.Type.ClassType;
 import codegen.C.Ast.Vtable.VtableSingle;
 import util.Temp;
 
+import java.util.BitSet;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -334,11 +335,25 @@ public class TranslateVisitor implements ast.Visitor {
         newFormals, locals, newStm, retExp);
   }
 
-  private String genClassGCMap(List<Tuple> fields) {
-    return fields.stream().map(f -> {
-      if (f.type instanceof ClassType || f.type instanceof Type.IntArray) return "1";
-      else return "0";
-    }).reduce("", String::concat);
+  // The object layout on the C side: the header takes a word,
+  // references take a word (or 4 bytes if compressed), and ints take
+  // 4 bytes, following the usual C alignment rules.
+  public static final int HEAD_SIZE = 8;
+
+  // Bit i of the class gc map is set if the i-th reference-sized
+  // slot of an object (the header included) holds a reference.
+  private BitSet genClassGCMap(List<Tuple> fields) {
+    int refSize = control.Control.ConCodeGen.compressedRefs ? 4 : 8;
+    BitSet gcMap = new BitSet();
+    int offset = HEAD_SIZE;
+    for (Tuple f : fields) {
+      if (f.type instanceof ClassType || f.type instanceof Type.IntArray) {
+        offset = (offset + refSize - 1) / refSize * refSize;
+        gcMap.set(offset / refSize);
+        offset += refSize;
+      } else offset += 4;
+    }
+    return gcMap;
   }
 
   // class
@@ -37,7 +37,10 @@ public class CommandLine {
   public CommandLine() {
     this.args = new util.Flist<Arg<Object>>()
         .list(
-            new Arg<>(
+            new Arg<>("allocProfile", "{true|false}",
+                "profile the allocations per class and site (C)", Kind.Bool, (b) -> {
+                  Control.ConCodeGen.allocProfile = (Boolean) b;
+                }), new Arg<>(
                 "codegen",
                 "{bytecode|C|dalvik}",
                 "which code generator to use",
@@ -57,6 +60,12 @@ public class CommandLine {
                     output();
                     System.exit(1);
                   }
+                }), new Arg<>("compressedRefs", "{true|false}",
+                "store reference fields as 32-bit offsets (C)", Kind.Bool, (b) -> {
+                  Control.ConCodeGen.compressedRefs = (Boolean) b;
+                }), new Arg<>("conservativeRoots", "{true|false}",
+                "no GC frames, scan the C stack for roots (C)", Kind.Bool, (b) -> {
+                  Control.ConCodeGen.conservativeRoots = (Boolean) b;
                 }), new Arg<>("dump", "<ir>",
                 "dump information about the ir", Kind.String, new F<Object>() {
                   @Override
@@ -88,6 +97,9 @@ public class CommandLine {
                     output();
                     System.exit(1);
                   }
+                }), new Arg<>("heapImage", "<Class.method>",
+                "save and restore the result of the method across runs (C)", Kind.String, (s) -> {
+                  Control.ConCodeGen.heapImage = (String) s;
                 }), new Arg<>("help", null, "show this help information",
                 Kind.Empty, (s) -> {
                   usage();
@@ -114,9 +126,27 @@ public class CommandLine {
                     output();
                     System.exit(1);
                   }
+                }), new Arg<>("lto", "{true|false}",
+                "link-time optimization with the runtime (C)", Kind.Bool, (b) -> {
+                  Control.ConCodeGen.lto = (Boolean) b;
+                }), new Arg<>("metrics", "<file>",
+                "write the time, allocation and IR size of every pass (.csv or JSON)", Kind.String, (s) -> {
+                  Control.metricsFile = (String) s;
+                }), new Arg<>("opt", "{0|1|2|3}",
+                "optimization level of the C compiler", Kind.Int, (n) -> {
+                  int i = (Integer) n;
+                  if (i < 0 || i > 3) {
+                    System.out.println("bad argument: " + i);
+                    output();
+                    System.exit(1);
+                  }
+                  Control.ConCodeGen.optLevel = i;
                 }), new Arg<>("output", "<outfile>",
                 "set the name of the output file", Kind.String, (Object s) -> {
                   Control.ConCodeGen.outputName = (String) s;
+                }), new Arg<>("readBarrier", "{true|false}",
+                "emit read barriers for the incremental GC (C)", Kind.Bool, (b) -> {
+                  Control.ConCodeGen.readBarrier = (Boolean) b;
                 }), new Arg<>("skip", "<pass>",
                 "which compile pass to skip", Kind.String, (s) -> {
                   Control.addPass((String) s);
@@ -124,7 +154,7 @@ public class CommandLine {
                 "whether or not to test the lexer", Kind.Empty, (s) -> {
                   Control.ConLexer.test = true;
                 }), new Arg<>("trace", "<method>",
-                "which method to trace", Kind.String, new F<Object>() {
+                "which method or pass to trace", Kind.String, new F<Object>() {
                   @Override
                   public void f(Object s) {
                     Control.addTrace((String) s);
@@ -1,11 +1,15 @@
 package control;
 
+import java.util.function.Supplier;
+
 public class CompilerPass {
   private String name;
   private long startTime;
   private long endTime;
-  private Object obj;
-  private Object x;
+  private Runnable pass;
+  // the program before and after the pass, for the metrics
+  private Supplier<?> before;
+  private Supplier<?> after;
   private static int indent = 0;
   private final int nest = 3;
 
@@ -20,12 +24,18 @@ public class CompilerPass {
     }
   }
 
-  public CompilerPass(String name, Object obj, Object x) {
+  public CompilerPass(String name, Runnable pass) {
+    this(name, () -> null, () -> null, pass);
+  }
+
+  public CompilerPass(String name, Supplier<?> before, Supplier<?> after,
+      Runnable pass) {
     this.name = name;
     this.startTime = 0;
     this.endTime = 0;
-    this.obj = obj;
-    this.x = x;
+    this.pass = pass;
+    this.before = before;
+    this.after = after;
   }
 
   public void exec() {
@@ -38,20 +48,18 @@ public class CompilerPass {
       }
     }
 
-    // a dirty hack, it's NOT type safe!
-    int i;
+    Metrics.Record record = null;
+    if (Metrics.enabled())
+      record = Metrics.start(this.name, this.before.get());
     try {
-      java.lang.reflect.Method[] methods = this.obj.getClass().getMethods();
-      for (i = 0; i < methods.length; i++) {
-        if (methods[i].getName().equals("accept"))
-          break;
-      }
-      methods[i].invoke(this.obj, this.x);
+      this.pass.run();
     } catch (Throwable o) {
       System.out.println("compiler bug");
       o.printStackTrace();
       System.exit(1);
     }
+    if (record != null)
+      Metrics.end(record, this.after.get());
 
     if (Control.verbose != Control.Verbose_t.Silent) {
       indent -= nest;
@@ -59,46 +67,7 @@ public class CompilerPass {
       System.out.print(this.name + " finished");
       if (Control.verbose == Control.Verbose_t.Detailed) {
         this.endTime = System.nanoTime();
-        System.out.print(": @ " + (this.endTime - this.startTime) / 1000
-        + "ms");
-      }
-      System.out.println("");
-    }
-  }
-  
-  public void doitName(String name) {
-    if (Control.verbose != Control.Verbose_t.Silent) {
-      printSpaces();
-      indent += nest;
-      System.out.println(this.name + " starting");
-      if (Control.verbose == Control.Verbose_t.Detailed) {
-        this.startTime = System.nanoTime();
-      }
-    }
-
-    // a dirty hack, it's NOT type safe!
-    int i;
-    try {
-      java.lang.reflect.Method[] methods = this.obj.getClass().getMethods();
-      for (i = 0; i < methods.length; i++) {
-        if (methods[i].getName().equals(name))
-          break;
-      }
-      methods[i].invoke(this.obj, this.x);
-    } catch (Throwable o) {
-      System.out.println("compiler bug");
-      o.printStackTrace();
-      System.exit(1);
-    }
-
-    if (Control.verbose != Control.Verbose_t.Silent){
-      indent -= nest;
-      printSpaces();
-      System.out.print(this.name + " finished");
-      if (Control.verbose == Control.Verbose_t.Detailed) {
-        this.endTime = System.nanoTime();
-        System.out.print(": @ " + (this.endTime - this.startTime) / 1000
-        + "ms");
+        System.out.format(": @ %.3fms", (this.endTime - this.startTime) / 1e6);
       }
       System.out.println("");
     }
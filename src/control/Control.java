@@ -42,6 +42,34 @@ public class Control {
     }
 
     public static Kind_t codegen = Kind_t.C;
+
+    // the optimization level of the C compiler, for both the
+    // generated code and the runtime library
+    public static int optLevel = 2;
+
+    // whether to optimize the generated code and the runtime
+    // together at the link time
+    public static boolean lto = false;
+
+    // whether reference fields are 32-bit offsets from the heap
+    // base, rather than pointers
+    public static boolean compressedRefs = false;
+
+    // whether every load of a reference field goes through the read
+    // barrier, which the incremental collector needs
+    public static boolean readBarrier = false;
+
+    // whether to leave out the GC frames, so that the runtime finds
+    // the roots by scanning the C stack conservatively
+    public static boolean conservativeRoots = false;
+
+    // whether to pass the allocation site to the runtime, for the
+    // allocation profiler
+    public static boolean allocProfile = false;
+
+    // "Class.method" of the builder method whose result is saved to
+    // and restored from a heap image by the runtime, if not null
+    public static String heapImage = null;
   }
   
 //graph visualization
@@ -50,6 +78,9 @@ public class Control {
  }
  public static Visualize_Kind_t visualize = Visualize_Kind_t.None;
   
+  // the file the metrics of every pass are written to, or null
+  public static String metricsFile = null;
+
   // verbose level
   public enum Verbose_t {
     Silent, Pass, Detailed
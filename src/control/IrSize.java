@@ -0,0 +1,106 @@
+package control;
+
+/**
+ * The size of a program in one of the intermediate representations:
+ * the AST, the C AST, or the control-flow graph. The main method
+ * counts as a method, the local variables as temps, and the blocks
+ * are those of the control-flow graph only.
+ */
+public class IrSize {
+  public long classes;
+  public long methods;
+  public long blocks;
+  public long statements;
+  public long temps;
+
+  // null if "ir" is not a whole program
+  public static IrSize of(Object ir) {
+    IrSize size = new IrSize();
+    if (ir instanceof ast.Ast.Program.ProgramSingle)
+      size.count((ast.Ast.Program.ProgramSingle) ir);
+    else if (ir instanceof codegen.C.Ast.Program.ProgramSingle)
+      size.count((codegen.C.Ast.Program.ProgramSingle) ir);
+    else if (ir instanceof cfg.Cfg.Program.ProgramSingle)
+      size.count((cfg.Cfg.Program.ProgramSingle) ir);
+    else
+      return null;
+    return size;
+  }
+
+  // AST
+  private void count(ast.Ast.Program.ProgramSingle p) {
+    this.classes = p.classes.size() + 1;
+    this.methods = 1;
+    count(((ast.Ast.MainClass.MainClassSingle) p.mainClass).stm);
+    for (ast.Ast.Class.T c : p.classes) {
+      for (ast.Ast.Method.T mth : ((ast.Ast.Class.ClassSingle) c).methods) {
+        ast.Ast.Method.MethodSingle m = (ast.Ast.Method.MethodSingle) mth;
+        this.methods++;
+        this.temps += m.locals.size();
+        m.stms.forEach(this::count);
+      }
+    }
+  }
+
+  private void count(ast.Ast.Stm.T s) {
+    if (s instanceof ast.Ast.Stm.Block) {
+      ((ast.Ast.Stm.Block) s).stms.forEach(this::count);
+      return;
+    }
+    this.statements++;
+    if (s instanceof ast.Ast.Stm.If) {
+      count(((ast.Ast.Stm.If) s).thenn);
+      count(((ast.Ast.Stm.If) s).elsee);
+    } else if (s instanceof ast.Ast.Stm.While)
+      count(((ast.Ast.Stm.While) s).body);
+  }
+
+  // C
+  private void count(codegen.C.Ast.Program.ProgramSingle p) {
+    codegen.C.Ast.MainMethod.MainMethodSingle main =
+        (codegen.C.Ast.MainMethod.MainMethodSingle) p.mainMethod;
+    this.classes = p.classes.size();
+    this.methods = p.methods.size() + 1;
+    this.temps = main.locals.size();
+    count(main.stm);
+    for (codegen.C.Ast.Method.T mth : p.methods) {
+      codegen.C.Ast.Method.MethodSingle m = (codegen.C.Ast.Method.MethodSingle) mth;
+      this.temps += m.locals.size();
+      m.stms.forEach(this::count);
+    }
+  }
+
+  private void count(codegen.C.Ast.Stm.T s) {
+    if (s instanceof codegen.C.Ast.Stm.Block) {
+      ((codegen.C.Ast.Stm.Block) s).stms.forEach(this::count);
+      return;
+    }
+    this.statements++;
+    if (s instanceof codegen.C.Ast.Stm.If) {
+      count(((codegen.C.Ast.Stm.If) s).thenn);
+      count(((codegen.C.Ast.Stm.If) s).elsee);
+    } else if (s instanceof codegen.C.Ast.Stm.While)
+      count(((codegen.C.Ast.Stm.While) s).body);
+  }
+
+  // control-flow graph
+  private void count(cfg.Cfg.Program.ProgramSingle p) {
+    cfg.Cfg.MainMethod.MainMethodSingle main =
+        (cfg.Cfg.MainMethod.MainMethodSingle) p.mainMethod;
+    this.classes = p.classes.size();
+    this.methods = p.methods.size() + 1;
+    this.temps = main.locals.size();
+    countBlocks(main.blocks);
+    for (cfg.Cfg.Method.T mth : p.methods) {
+      cfg.Cfg.Method.MethodSingle m = (cfg.Cfg.Method.MethodSingle) mth;
+      this.temps += m.locals.size();
+      countBlocks(m.blocks);
+    }
+  }
+
+  private void countBlocks(java.util.List<cfg.Cfg.Block.T> blocks) {
+    this.blocks += blocks.size();
+    for (cfg.Cfg.Block.T b : blocks)
+      this.statements += ((cfg.Cfg.Block.BlockSingle) b).stms.size();
+  }
+}
@@ -0,0 +1,140 @@
+package control;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+
+/**
+ * The metrics of every compiler pass, given "-metrics &lt;file&gt;":
+ * the wall time, the CPU time and the bytes allocated by the compiler
+ * thread, and the size of the program before and after the pass, where
+ * it is known (see "IrSize"). The passes nest, and their numbers
+ * include those of the passes they run; a time or a count the JVM
+ * cannot tell is -1. They are written in the order the passes start,
+ * as CSV if the file ends with ".csv", else as JSON.
+ */
+public class Metrics {
+  public static class Record {
+    public String name;
+    public int depth;
+    public long wallNs;
+    public long cpuNs = -1;
+    public long allocatedBytes = -1;
+    public IrSize before;
+    public IrSize after;
+  }
+
+  private static ArrayList<Record> records = new ArrayList<>();
+  private static int depth = 0;
+
+  private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+  public static boolean enabled() {
+    return Control.metricsFile != null;
+  }
+
+  private static long cpuTime() {
+    if (!threads.isCurrentThreadCpuTimeSupported())
+      return -1;
+    return threads.getCurrentThreadCpuTime();
+  }
+
+  // only HotSpot counts the allocated bytes
+  private static long allocatedBytes() {
+    if (!(threads instanceof com.sun.management.ThreadMXBean))
+      return -1;
+    com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean) threads;
+    if (!t.isThreadAllocatedMemorySupported())
+      return -1;
+    return t.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  // The start of a pass, on the program "ir" (null if unknown).
+  public static Record start(String name, Object ir) {
+    Record r = new Record();
+    r.name = name;
+    r.depth = depth++;
+    r.before = IrSize.of(ir);
+    records.add(r);
+    r.allocatedBytes = allocatedBytes();
+    r.cpuNs = cpuTime();
+    r.wallNs = System.nanoTime();
+    return r;
+  }
+
+  // The end of the pass "r", whose result is "ir".
+  public static void end(Record r, Object ir) {
+    r.wallNs = System.nanoTime() - r.wallNs;
+    long cpu = cpuTime();
+    long bytes = allocatedBytes();
+    r.cpuNs = (cpu < 0 || r.cpuNs < 0) ? -1 : cpu - r.cpuNs;
+    r.allocatedBytes = (bytes < 0 || r.allocatedBytes < 0) ? -1 : bytes - r.allocatedBytes;
+    r.after = IrSize.of(ir);
+    depth--;
+  }
+
+  public static void write() {
+    if (!enabled())
+      return;
+    try (PrintWriter out = new PrintWriter(new FileWriter(Control.metricsFile))) {
+      if (Control.metricsFile.endsWith(".csv"))
+        writeCsv(out);
+      else
+        writeJson(out);
+    } catch (IOException e) {
+      System.out.println("Error: cannot write the metrics: " + e.getMessage());
+      System.exit(1);
+    }
+  }
+
+  private static final String[] SIZES = {"classes", "methods", "blocks", "statements", "temps"};
+
+  private static long[] sizes(IrSize s) {
+    return new long[] {s.classes, s.methods, s.blocks, s.statements, s.temps};
+  }
+
+  private static void writeCsv(PrintWriter out) {
+    StringBuilder header = new StringBuilder("pass,depth,wallNs,cpuNs,allocatedBytes");
+    for (String when : new String[] {"Before", "After"})
+      for (String s : SIZES)
+        header.append(",").append(s).append(when);
+    out.println(header);
+    for (Record r : records) {
+      StringBuilder line = new StringBuilder();
+      line.append('"').append(r.name.replace("\"", "\"\"")).append('"');
+      line.append(",").append(r.depth).append(",").append(r.wallNs)
+          .append(",").append(r.cpuNs).append(",").append(r.allocatedBytes);
+      for (IrSize s : new IrSize[] {r.before, r.after}) {
+        for (int i = 0; i < SIZES.length; i++)
+          line.append(",").append(s == null ? "" : String.valueOf(sizes(s)[i]));
+      }
+      out.println(line);
+    }
+  }
+
+  private static String json(IrSize s) {
+    if (s == null)
+      return "null";
+    StringBuilder b = new StringBuilder("{");
+    long[] v = sizes(s);
+    for (int i = 0; i < SIZES.length; i++)
+      b.append(i > 0 ? ", " : "").append('"').append(SIZES[i]).append("\": ").append(v[i]);
+    return b.append("}").toString();
+  }
+
+  private static void writeJson(PrintWriter out) {
+    out.println("{\"passes\": [");
+    for (int i = 0; i < records.size(); i++) {
+      Record r = records.get(i);
+      out.print("  {\"pass\": \"" + r.name.replace("\\", "\\\\").replace("\"", "\\\"") + "\""
+          + ", \"depth\": " + r.depth + ", \"wallNs\": " + r.wallNs
+          + ", \"cpuNs\": " + r.cpuNs + ", \"allocatedBytes\": " + r.allocatedBytes
+          + ", \"before\": " + json(r.before) + ", \"after\": " + json(r.after) + "}");
+      out.println(i < records.size() - 1 ? "," : "");
+    }
+    out.println("]}");
+  }
+}
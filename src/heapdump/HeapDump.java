@@ -0,0 +1,324 @@
+package heapdump;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The offline reader of the heap dumps written by the runtime on
+ * SIGUSR1 (see "runtime/heap-dump.h"). It computes the dominator tree
+ * of the object graph, and prints the retained size per class, and
+ * of the largest objects.
+ * <p>
+ * The retained size of an object is the size of the objects it
+ * dominates, that is, which would be freed with it: every path from
+ * the roots to them goes through it. The dominators are computed by
+ * the iterative algorithm of Cooper, Harvey and Kennedy, over a
+ * virtual root which points to all the roots.
+ * <p>
+ * Usage: java heapdump.HeapDump &lt;dump&gt; [-top &lt;n&gt;]
+ */
+public class HeapDump {
+  static final String ARRAY = "int[]";
+
+  // the objects, numbered in the order of the dump; node 0 is the
+  // virtual root
+  private ArrayList<Long> address = new ArrayList<>();
+  private ArrayList<String> type = new ArrayList<>();
+  private ArrayList<Long> size = new ArrayList<>();
+  private ArrayList<long[]> refs = new ArrayList<>();
+  private ArrayList<Long> roots = new ArrayList<>();
+
+  private int n;
+  private int[][] succs;
+  private int[] rpo; // the nodes in reverse postorder
+  private int[] order; // the index of a node in "rpo", -1 if unreachable
+  private int[] idom;
+  private long[] retained;
+
+  public HeapDump() {
+    address.add(0L);
+    type.add("<roots>");
+    size.add(0L);
+    refs.add(null);
+  }
+
+  public void read(String file) throws IOException {
+    ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(Paths.get(file)))
+        .order(ByteOrder.nativeOrder());
+    Map<Long, String> classes = new HashMap<>();
+    classes.put(0L, ARRAY);
+
+    if (b.get() != 'H' || !readString(b, 7).equals("TIGERHD"))
+      throw new IOException(file + ": not a heap dump");
+    int version = b.getInt();
+    if (version != 1)
+      throw new IOException(file + ": unknown version " + version);
+    for (;;) {
+      byte tag = b.get();
+      switch (tag) {
+      case 'C': {
+        long id = b.getLong();
+        classes.put(id, readString(b, b.getInt()));
+        break;
+      }
+      case 'O': {
+        address.add(b.getLong());
+        String name = classes.get(b.getLong());
+        type.add(name == null ? "<unknown>" : name);
+        size.add(b.getLong());
+        long[] r = new long[b.getInt()];
+        for (int i = 0; i < r.length; i++)
+          r[i] = b.getLong();
+        refs.add(r);
+        break;
+      }
+      case 'R':
+        roots.add(b.getLong());
+        break;
+      case 'E':
+        return;
+      default:
+        throw new IOException(file + ": bad record " + tag);
+      }
+    }
+  }
+
+  private static String readString(ByteBuffer b, int len) {
+    byte[] s = new byte[len];
+    b.get(s);
+    return new String(s, StandardCharsets.UTF_8);
+  }
+
+  // resolve the addresses to nodes, dropping the dangling ones
+  private void buildGraph() {
+    n = address.size();
+    Map<Long, Integer> node = new HashMap<>();
+    for (int i = 1; i < n; i++)
+      node.put(address.get(i), i);
+    succs = new int[n][];
+    succs[0] = resolve(node, roots.stream().mapToLong(x -> x).toArray());
+    for (int i = 1; i < n; i++)
+      succs[i] = resolve(node, refs.get(i));
+  }
+
+  private static int[] resolve(Map<Long, Integer> node, long[] addrs) {
+    return Arrays.stream(addrs).filter(node::containsKey)
+        .mapToInt(a -> node.get(a)).distinct().toArray();
+  }
+
+  // an iterative depth-first search, so that a long list does not
+  // overflow the stack
+  private void numberNodes() {
+    order = new int[n];
+    Arrays.fill(order, -1);
+    int[] post = new int[n];
+    int count = 0;
+    int[] stack = new int[n];
+    int[] next = new int[n];
+    int sp = 0;
+    stack[sp++] = 0;
+    order[0] = 0;
+    while (sp > 0) {
+      int v = stack[sp - 1];
+      if (next[v] < succs[v].length) {
+        int w = succs[v][next[v]++];
+        if (order[w] < 0) {
+          order[w] = 0;
+          stack[sp++] = w;
+        }
+      } else {
+        post[count++] = v;
+        sp--;
+      }
+    }
+    rpo = new int[count];
+    for (int i = 0; i < count; i++) {
+      rpo[i] = post[count - 1 - i];
+      order[rpo[i]] = i;
+    }
+  }
+
+  private void computeDominators() {
+    int[][] preds = new int[n][];
+    int[] npreds = new int[n];
+    for (int v : rpo)
+      for (int w : succs[v])
+        npreds[w]++;
+    for (int v = 0; v < n; v++)
+      preds[v] = new int[npreds[v]];
+    Arrays.fill(npreds, 0);
+    for (int v : rpo)
+      for (int w : succs[v])
+        preds[w][npreds[w]++] = v;
+
+    idom = new int[n];
+    Arrays.fill(idom, -1);
+    idom[0] = 0;
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int i = 1; i < rpo.length; i++) {
+        int v = rpo[i];
+        int d = -1;
+        for (int p : preds[v]) {
+          if (idom[p] < 0)
+            continue;
+          d = (d < 0) ? p : intersect(p, d);
+        }
+        if (idom[v] != d) {
+          idom[v] = d;
+          changed = true;
+        }
+      }
+    }
+  }
+
+  private int intersect(int a, int b) {
+    while (a != b) {
+      while (order[a] > order[b])
+        a = idom[a];
+      while (order[b] > order[a])
+        b = idom[b];
+    }
+    return a;
+  }
+
+  // a node comes after its dominator in reverse postorder, so the
+  // sizes are summed up backwards
+  private void computeRetained() {
+    retained = new long[n];
+    for (int i = rpo.length - 1; i >= 0; i--) {
+      int v = rpo[i];
+      retained[v] += size.get(v);
+      if (v != 0)
+        retained[idom[v]] += retained[v];
+    }
+  }
+
+  static class ClassInfo {
+    String name;
+    long instances;
+    long shallow;
+    long retained;
+
+    ClassInfo(String name) {
+      this.name = name;
+    }
+  }
+
+  // The retained size of a class is that of its objects which are not
+  // dominated by another object of the same class, so that a list is
+  // counted once rather than once per node.
+  private Map<String, ClassInfo> classStats() {
+    Map<String, ClassInfo> stats = new HashMap<>();
+    int[][] children = new int[n][];
+    int[] nchildren = new int[n];
+    for (int i = 1; i < rpo.length; i++)
+      nchildren[idom[rpo[i]]]++;
+    for (int v = 0; v < n; v++)
+      children[v] = new int[nchildren[v]];
+    Arrays.fill(nchildren, 0);
+    for (int i = 1; i < rpo.length; i++) {
+      int v = rpo[i];
+      children[idom[v]][nchildren[idom[v]]++] = v;
+    }
+    for (int v = 1; v < n; v++) {
+      ClassInfo c = stats.computeIfAbsent(type.get(v), ClassInfo::new);
+      c.instances++;
+      c.shallow += size.get(v);
+    }
+
+    // the objects of each class on the path from the virtual root
+    Map<String, Integer> active = new HashMap<>();
+    int[] stack = new int[n];
+    int[] next = new int[n];
+    int sp = 0;
+    stack[sp++] = 0;
+    while (sp > 0) {
+      int v = stack[sp - 1];
+      if (next[v] == 0 && v != 0) {
+        String t = type.get(v);
+        int a = active.getOrDefault(t, 0);
+        if (a == 0)
+          stats.get(t).retained += retained[v];
+        active.put(t, a + 1);
+      }
+      if (next[v] < children[v].length) {
+        stack[sp++] = children[v][next[v]++];
+      } else {
+        if (v != 0)
+          active.merge(type.get(v), -1, Integer::sum);
+        sp--;
+      }
+    }
+    return stats;
+  }
+
+  public void report(int top) {
+    buildGraph();
+    numberNodes();
+    computeDominators();
+    computeRetained();
+
+    long total = 0;
+    for (int v = 1; v < n; v++)
+      total += size.get(v);
+    System.out.format("%d objects, %d bytes, %d reachable, %d retained by %d roots%n",
+        n - 1, total, rpo.length - 1, retained[0], succs[0].length);
+
+    ArrayList<ClassInfo> classes = new ArrayList<>(classStats().values());
+    classes.sort((a, b) -> Long.compare(b.retained, a.retained));
+    System.out.println();
+    System.out.format("%12s %14s %14s  %s%n", "instances", "shallow", "retained", "class");
+    for (ClassInfo c : classes)
+      System.out.format("%12d %14d %14d  %s%n", c.instances, c.shallow, c.retained, c.name);
+
+    Integer[] objs = new Integer[rpo.length - 1];
+    for (int i = 1; i < rpo.length; i++)
+      objs[i - 1] = rpo[i];
+    Arrays.sort(objs, (a, b) -> Long.compare(retained[b], retained[a]));
+    System.out.println();
+    System.out.format("%18s %14s %14s  %s%n", "object", "shallow", "retained", "class");
+    for (int i = 0; i < Math.min(top, objs.length); i++) {
+      int v = objs[i];
+      System.out.format("%#18x %14d %14d  %s%n", address.get(v), size.get(v),
+          retained[v], type.get(v));
+    }
+  }
+
+  private static void usage() {
+    System.out.println("Usage: java heapdump.HeapDump <dump> [-top <n>]");
+    System.exit(1);
+  }
+
+  public static void main(String[] args) {
+    String file = null;
+    int top = 10;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-top") && i + 1 < args.length)
+        top = Integer.parseInt(args[++i]);
+      else if (file == null)
+        file = args[i];
+      else
+        usage();
+    }
+    if (file == null)
+      usage();
+    HeapDump dump = new HeapDump();
+    try {
+      dump.read(file);
+    } catch (IOException | java.nio.BufferUnderflowException e) {
+      System.out.println("Error: " + e);
+      System.exit(1);
+    }
+    dump.report(top);
+  }
+}